@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Completing a stream in {@link HttpResponseHandler}: registering it, and the
+ * {@code messageReceived} that succeeds its promise once the last frame has been handled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResponseHandlerBenchmark {
+
+    private HttpResponseHandler handler;
+    private EmbeddedChannel channel;
+    private int streamId;
+
+    @Setup
+    public void setUp() {
+        handler = new HttpResponseHandler(false);
+        channel = new EmbeddedChannel(handler);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Benchmark
+    public boolean completeStream() {
+        // Client-initiated ids are odd, wrapping is harmless as streams are removed again
+        streamId = (streamId + 2) & Integer.MAX_VALUE | 1;
+        final Http2Response response = new Http2Response(0, null);
+        response.streamId(streamId);
+        final ChannelPromise promise = channel.newPromise();
+        handler.put(streamId, promise, response);
+        channel.pipeline().fireChannelRead(response);
+        handler.remove(streamId);
+        return promise.isSuccess();
+    }
+}
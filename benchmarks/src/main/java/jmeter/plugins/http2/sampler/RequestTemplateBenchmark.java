@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.protocol.http.control.Header;
+import org.apache.jmeter.protocol.http.control.HeaderManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+
+/**
+ * Building requests, the work {@link NettyHttp2Client#request()} does before anything is written.
+ *
+ * {@link #newRequest()} is what every sample pays, {@link #compile()} what a JMeter thread pays
+ * once, or on every sample if its headers kept changing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestTemplateBenchmark {
+
+    @Param({ "0", "10" })
+    public int headers;
+
+    @Param({ "0", "1024" })
+    public int bodySize;
+
+    private HeaderManager headerManager;
+    private RequestBody body;
+    private RequestTemplate template;
+
+    @Setup
+    public void setUp() throws Exception {
+        headerManager = new HeaderManager();
+        for (int i = 0; i < headers; i++) {
+            headerManager.add(new Header("X-Benchmark-" + i, "value-" + i));
+        }
+        body = bodySize > 0 ? RequestBody.bytes(new byte[bodySize]) : null;
+        template = RequestTemplate.compile("GET", "localhost", 8443, true, headerManager, "");
+    }
+
+    @Benchmark
+    public RequestTemplate compile() throws Exception {
+        return RequestTemplate.compile("GET", "localhost", 8443, true, headerManager, "");
+    }
+
+    @Benchmark
+    public int newRequest() {
+        FullHttpRequest request = template.newRequest("/index.html", body);
+        try {
+            return request.headers().size();
+        } finally {
+            request.release();
+        }
+    }
+}
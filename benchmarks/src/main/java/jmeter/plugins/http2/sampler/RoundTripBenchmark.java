@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Complete samples against an {@link Http2TestServer} on the loopback interface, on a connection
+ * kept open across samples as in a load test. The score is the whole per-sample cost: building
+ * the request, the round trip through both HTTP/2 stacks and filling the SampleResult.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({ HTTP2Sampler.PROTOCOL_H2C, HTTP2Sampler.PROTOCOL_H2 })
+    public String protocol;
+
+    @Param({ "0", "16384" })
+    public int payloadSize;
+
+    @Param({ "1", "8" })
+    public int streams;
+
+    private Http2TestServer server;
+    private HTTP2Sampler sampler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (HTTP2Sampler.PROTOCOL_H2.equals(protocol) && !Http2TestServer.isAlpnAvailable()) {
+            throw new IllegalStateException("h2 needs OpenSSL with ALPN support, run with -p protocol=h2c");
+        }
+        server = new Http2TestServer.Builder(protocol).payloadSize(payloadSize).build().start();
+        JMeterContextService.getContext().setVariables(new JMeterVariables());
+
+        sampler = new HTTP2Sampler();
+        sampler.setDomain("localhost");
+        sampler.setPort(server.port());
+        sampler.setPath("/index.html");
+        sampler.setProtocol(protocol);
+        sampler.setStreams(streams);
+        sampler.testStarted();
+        sampler.threadStarted();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sampler.threadFinished();
+        sampler.testEnded();
+        server.close();
+    }
+
+    @Benchmark
+    public SampleResult sample() {
+        SampleResult result = sampler.sample(null);
+        if (!result.isSuccessful()) {
+            throw new IllegalStateException(result.getResponseMessage());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+
+/**
+ * Drives requests of one JMeter thread at a fixed arrival rate (an open workload model).
+ *
+ * Requests are sent at their scheduled time regardless of how many earlier requests are still
+ * outstanding, and completions are collected from event loop callbacks. Each call to
+ * {@link #next(HTTP2Sampler)} returns one completed request, so every response still becomes its
+ * own {@link SampleResult}. Elapsed time is measured from the scheduled send time rather than
+ * the actual one, so that a late send caused by a saturated load generator shows up in the
+ * results instead of being hidden (coordinated omission).
+ */
+public class AsyncRequestScheduler {
+
+    private final long intervalNanos;
+    private final int maxInFlight;
+    private final long originNanos;
+    private final long originMillis;
+
+    private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private long nextSendNanos;
+
+    /**
+     * @param requestsPerSecond Target arrival rate of this thread
+     * @param maxInFlight Requests outstanding at most; further requests are delayed but still
+     *                    measured from their scheduled time
+     */
+    public AsyncRequestScheduler(double requestsPerSecond, int maxInFlight) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("Target rate must be positive: " + requestsPerSecond);
+        }
+        this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+        this.maxInFlight = maxInFlight;
+        this.originNanos = System.nanoTime();
+        this.originMillis = System.currentTimeMillis();
+        this.nextSendNanos = originNanos;
+    }
+
+    /**
+     * Send every request that is due and wait for the next completion
+     *
+     * @param sampler The sampler creating the request of each arrival
+     * @return The result of one completed request
+     * @throws InterruptedException if the JMeter thread is interrupted while waiting
+     * @throws IOException if the request body cannot be read
+     */
+    public SampleResult next(HTTP2Sampler sampler) throws InterruptedException, IOException {
+        while (true) {
+            long now = System.nanoTime();
+            while (now - nextSendNanos >= 0 && inFlight.get() < maxInFlight) {
+                send(sampler, nextSendNanos);
+                nextSendNanos += intervalNanos;
+                now = System.nanoTime();
+            }
+
+            long waitNanos = inFlight.get() < maxInFlight ? Math.max(0, nextSendNanos - now) : intervalNanos;
+            Completion completion = completions.poll(waitNanos, TimeUnit.NANOSECONDS);
+            if (completion != null) {
+                return completion.toSampleResult();
+            }
+        }
+    }
+
+    private void send(HTTP2Sampler sampler, long scheduledNanos) throws IOException {
+        NettyHttp2Client client = sampler.createClient();
+        inFlight.incrementAndGet();
+        client.requestAsync(new ScheduledCallback(scheduledNanos));
+    }
+
+    /**
+     * Records the completion time on the event loop and queues the result for the sampler thread
+     */
+    private final class ScheduledCallback implements NettyHttp2Client.Callback {
+        private final long scheduledNanos;
+
+        ScheduledCallback(long scheduledNanos) {
+            this.scheduledNanos = scheduledNanos;
+        }
+
+        @Override
+        public void completed(NettyHttp2Client client, SampleResult sampleResult, Http2Response response,
+                Throwable cause) {
+            final long endNanos = System.nanoTime();
+            inFlight.decrementAndGet();
+            completions.add(new Completion(client, sampleResult, response, cause, scheduledNanos, endNanos));
+        }
+    }
+
+    private final class Completion {
+        private final NettyHttp2Client client;
+        private final SampleResult sampleResult;
+        private final Http2Response response;
+        private final Throwable cause;
+        private final long scheduledNanos;
+        private final long endNanos;
+
+        Completion(NettyHttp2Client client, SampleResult sampleResult, Http2Response response, Throwable cause,
+                long scheduledNanos, long endNanos) {
+            this.client = client;
+            this.sampleResult = sampleResult;
+            this.response = response;
+            this.cause = cause;
+            this.scheduledNanos = scheduledNanos;
+            this.endNanos = endNanos;
+        }
+
+        SampleResult toSampleResult() {
+            final long startMillis = originMillis + TimeUnit.NANOSECONDS.toMillis(scheduledNanos - originNanos);
+            sampleResult.setStampAndTime(startMillis, TimeUnit.NANOSECONDS.toMillis(endNanos - scheduledNanos));
+            sampleResult.setConnectTime(client.timings().acquire());
+            if (cause != null || response == null) {
+                sampleResult.setSuccessful(false);
+                if (cause != null) {
+                    sampleResult.setResponseMessage(cause.toString());
+                }
+            } else {
+                sampleResult.setLatency(Math.max(0, response.firstByteTime() - startMillis));
+                client.complete(sampleResult, response);
+            }
+            client.exportVariables(JMeterContextService.getContext().getVariables());
+            return sampleResult;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * Owns the process-wide {@link EventLoopGroup} shared by all {@link HTTP2Sampler} threads.
+ *
+ * The group is created when the first sampler of a test plan is started and shut down
+ * gracefully when the last one has ended, so that any number of virtual users run on a
+ * fixed, small set of I/O threads.
+ */
+public final class EventLoopGroupManager {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    /** JMeter property with the number of I/O threads, defaults to the number of available cores */
+    public static final String THREADS_PROPERTY = "http2sampler.event_loop_threads";
+
+    private static final long SHUTDOWN_QUIET_PERIOD_MS = 100;
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+    // A lock rather than a monitor, so virtual threads of the first samples are not pinned while the group is built
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static volatile EventLoopGroup group;
+    private static volatile Http2Transport transport;
+    private static int users;
+
+    private EventLoopGroupManager() {
+    }
+
+    /**
+     * Register a test element using the group, creating the group on first use.
+     */
+    public static void start() {
+        lock.lock();
+        try {
+            users++;
+            if (group == null) {
+                group = create();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregister a test element, shutting the group down once nobody uses it any more.
+     */
+    public static void stop() {
+        lock.lock();
+        try {
+            if (users > 0) {
+                users--;
+            }
+            if (users == 0 && group != null) {
+                log.debug("Shutting down HTTP/2 event loop group");
+                Http2Await.awaitUninterruptibly(
+                    group.shutdownGracefully(SHUTDOWN_QUIET_PERIOD_MS, SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                    SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                group = null;
+                Http2Metrics.unregister();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The shared group; created lazily if a sampler runs outside of a test lifecycle
+     */
+    public static EventLoopGroup get() {
+        EventLoopGroup current = group;
+        if (current == null) {
+            lock.lock();
+            try {
+                if (group == null) {
+                    group = create();
+                }
+                current = group;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return The shared group, {@code null} if there is none at the moment
+     */
+    static EventLoopGroup current() {
+        return group;
+    }
+
+    /**
+     * @return The transport of the shared group, creating the group if needed
+     */
+    public static Http2Transport transport() {
+        get();
+        return transport;
+    }
+
+    private static EventLoopGroup create() {
+        final int threads = JMeterUtils.getPropDefault(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        final Http2Transport selected =
+            Http2Transport.select(JMeterUtils.getPropDefault(Http2Transport.PROPERTY, Http2Transport.AUTO));
+        log.info("Creating HTTP/2 " + selected.name() + " event loop group with " + threads + " threads");
+        EventLoopGroup created = selected.newGroup(threads);
+        transport = selected;
+        Http2Metrics.register();
+        return created;
+    }
+}
@@ -15,8 +15,15 @@
  */
 package jmeter.plugins.http2.sampler;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.jmeter.protocol.http.control.HeaderManager;
@@ -25,11 +32,18 @@ import org.apache.jmeter.samplers.AbstractSampler;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jmeter.testelement.ThreadListener;
 import org.apache.jmeter.testelement.property.*;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.util.JMeterUtils;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
-public class HTTP2Sampler extends AbstractSampler {
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+
+public class HTTP2Sampler extends AbstractSampler implements TestStateListener, ThreadListener {
 
     private static final Logger log = LoggingManager.getLoggerForClass();
 
@@ -37,8 +51,94 @@ public class HTTP2Sampler extends AbstractSampler {
     public static final String DOMAIN = "HTTP2Sampler.domain";
     public static final String PORT = "HTTP2Sampler.port";
     public static final String PATH = "HTTP2Sampler.path";
+    public static final String ADDITIONAL_PATHS = "HTTP2Sampler.additionalPaths";
+    public static final String STREAMS = "HTTP2Sampler.streams";
+    public static final String PROTOCOL = "HTTP2Sampler.protocol";
+    public static final String CONNECTION_MODE = "HTTP2Sampler.connectionMode";
+    public static final String FORCE_FULL_HANDSHAKE = "HTTP2Sampler.forceFullHandshake";
+    public static final String MAX_RETAINED_BODY = "HTTP2Sampler.maxRetainedBody";
+    public static final String BODY_DIGEST = "HTTP2Sampler.bodyDigest";
+    public static final String EXPECTED_BODY_DIGEST = "HTTP2Sampler.expectedBodyDigest";
+    public static final String DEBUG = "HTTP2Sampler.debug";
+    public static final String ASYNC = "HTTP2Sampler.async";
+    public static final String TARGET_RATE = "HTTP2Sampler.targetRate";
+    public static final String MAX_IN_FLIGHT = "HTTP2Sampler.maxInFlight";
+    public static final String HEADER_TABLE_SIZE = "HTTP2Sampler.headerTableSize";
+    public static final String MAX_CONCURRENT_STREAMS = "HTTP2Sampler.maxConcurrentStreams";
+    public static final String INITIAL_WINDOW_SIZE = "HTTP2Sampler.initialWindowSize";
+    public static final String MAX_FRAME_SIZE = "HTTP2Sampler.maxFrameSize";
+    public static final String MAX_HEADER_LIST_SIZE = "HTTP2Sampler.maxHeaderListSize";
+    public static final String CONNECTION_WINDOW_SIZE = "HTTP2Sampler.connectionWindowSize";
+    public static final String AUTO_TUNE_WINDOW = "HTTP2Sampler.autoTuneWindow";
+    public static final String TCP_NODELAY = "HTTP2Sampler.tcpNoDelay";
+    public static final String RECEIVE_BUFFER_SIZE = "HTTP2Sampler.receiveBufferSize";
+    public static final String SEND_BUFFER_SIZE = "HTTP2Sampler.sendBufferSize";
+    public static final String TCP_QUICKACK = "HTTP2Sampler.tcpQuickAck";
+    public static final String BODY_TYPE = "HTTP2Sampler.bodyType";
+    public static final String BODY = "HTTP2Sampler.body";
+    public static final String BODY_ENCODING = "HTTP2Sampler.bodyEncoding";
+    public static final String QUERY_PARAMETERS = "HTTP2Sampler.queryParameters";
+    public static final String ENCODER_TABLE_SIZE = "HTTP2Sampler.encoderTableSize";
+    public static final String SENSITIVE_HEADERS = "HTTP2Sampler.sensitiveHeaders";
+    public static final String HPACK_STATS = "HTTP2Sampler.hpackStats";
+    public static final String SERVER_PUSH = "HTTP2Sampler.serverPush";
+    public static final String PUSH_SIZE_LIMIT = "HTTP2Sampler.pushSizeLimit";
+    public static final String AGGREGATE = "HTTP2Sampler.aggregate";
+    public static final String AGGREGATE_INTERVAL = "HTTP2Sampler.aggregateInterval";
+    public static final String DETAIL_RATE = "HTTP2Sampler.detailRate";
+    public static final String WARMUP_CONNECTIONS = "HTTP2Sampler.warmupConnections";
+    public static final String WARMUP_REQUESTS = "HTTP2Sampler.warmupRequests";
+    public static final String PING_INTERVAL = "HTTP2Sampler.pingInterval";
+    public static final String PING_TIMEOUT = "HTTP2Sampler.pingTimeout";
+    public static final String PING_RTT = "HTTP2Sampler.pingRtt";
+    public static final String PRIORITY_PRESET = "HTTP2Sampler.priorityPreset";
+
+    public static final double DEFAULT_TARGET_RATE = 10;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_AGGREGATE_INTERVAL = 10;
+    /** Value of a SETTINGS property meaning the setting is not sent, so the protocol default applies */
+    public static final int SETTING_NOT_SENT = -1;
+
+    /** JMeter property turning on debug logging for every HTTP2Sampler of the test plan */
+    public static final String DEBUG_PROPERTY = "http2sampler.debug";
 
     public static final String DEFAULT_METHOD = "GET";
+    public static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH" };
+
+    /** The body property holds the text to send */
+    public static final String BODY_TYPE_TEXT = "text";
+    /** The body property holds the path of a file to send */
+    public static final String BODY_TYPE_FILE = "file";
+    /** The body property holds the name of a JMeter variable to send */
+    public static final String BODY_TYPE_VARIABLE = "variable";
+
+    /** HTTP/2 over TLS, negotiated with ALPN */
+    public static final String PROTOCOL_H2 = "h2";
+    /** Cleartext HTTP/2 reached with an HTTP/1.1 Upgrade request */
+    public static final String PROTOCOL_H2C_UPGRADE = "h2c-upgrade";
+    /** Cleartext HTTP/2 with prior knowledge: the connection preface is sent right away */
+    public static final String PROTOCOL_H2C = "h2c";
+    public static final String DEFAULT_PROTOCOL = PROTOCOL_H2;
+
+    /** Every JMeter thread keeps its own connections */
+    public static final String CONNECTION_MODE_PER_THREAD = "per-thread";
+    /** All JMeter threads multiplex onto a shared pool of connections */
+    public static final String CONNECTION_MODE_SHARED = "shared";
+    public static final String DEFAULT_CONNECTION_MODE = CONNECTION_MODE_PER_THREAD;
+
+    private transient AsyncRequestScheduler scheduler;
+    private transient RequestTemplate template;
+    // Reused by the samples of this thread as long as the properties they come from stay the same
+    private transient Http2Settings settings;
+    private transient Http2ConnectionConfig config;
+    // Bodies are read, encoded and compressed once, until their text, file or encoding changes
+    private transient RequestBody body;
+    private transient String bodyType;
+    private transient String bodySource;
+    private transient String bodyEncoding;
+    private transient Http2Aggregator.ThreadRecorder recorder;
+    private transient boolean warmedUp;
 
     public HTTP2Sampler() {
         super();
@@ -76,23 +176,430 @@ public class HTTP2Sampler extends AbstractSampler {
     {
         log.debug("sample()");
 
-        // Load test elements
-        HeaderManager headerManager = (HeaderManager)getProperty(HTTPSamplerBase.HEADER_MANAGER).getObjectValue();
+        if (!warmedUp) {
+            warmedUp = true;
+            warmUp();
+        }
 
-        // Send H2 request
-        NettyHttp2Client client = new NettyHttp2Client(getMethod(), getDomain(), getPort(), getPath(), headerManager);
-        SampleResult res = client.request();
+        final boolean aggregate = isAggregate();
+        final boolean detail = !aggregate || ThreadLocalRandom.current().nextDouble() < getDetailRate();
+        SampleResult res;
+        try {
+            res = isAsync() ? sampleAsync() : sampleSync(!detail);
+        } catch (IllegalArgumentException | IOException exception) {
+            // Invalid SETTINGS value or unreadable body
+            res = new SampleResult();
+            res.setSuccessful(false);
+            res.setResponseMessage(exception.toString());
+        }
         res.setSampleLabel(getName());
 
+        return aggregate ? aggregate(res, detail) : res;
+    }
+
+    /**
+     * Open and warm up connections before the first sample of the thread, unless another thread did already
+     *
+     * Done on the first sample rather than at test start, as the HeaderManager only joins the
+     * sampler of each thread and the connections must match the requests the thread will send.
+     */
+    private void warmUp() {
+        final int connections = getWarmupConnections();
+        if (connections <= 0) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            final int opened = createClient().warmUp(connections, Math.max(0, getWarmupRequests()));
+            if (opened > 0) {
+                log.info("Warmed up " + opened + " HTTP/2 connections to " + getDomain() + ":" + getPort() + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (Exception exception) {
+            // The samples will open their connections themselves
+            log.warn("Warm-up of " + getName() + " failed", exception);
+        }
+    }
+
+    /**
+     * Record a result into the histograms of its label
+     *
+     * @param detail {@code true} if the result was picked to be reported on its own
+     * @return {@code res} if it is reported on its own, a summary if an interval is over, otherwise
+     *         {@code null}, which JMeter skips
+     */
+    private SampleResult aggregate(SampleResult res, boolean detail) {
+        final Http2Aggregator aggregator = Http2Aggregator.get(getName(), TimeUnit.SECONDS.toMillis(getAggregateInterval()));
+        if (recorder == null) {
+            recorder = aggregator.register();
+        }
+        final boolean reported = detail || !res.isSuccessful();
+        recorder.record(res, reported);
+        return reported ? res : aggregator.poll();
+    }
+
+    /**
+     * Send the request(s) of one sample and wait for the responses
+     */
+    private SampleResult sampleSync(boolean summaryOnly) throws IOException {
+        NettyHttp2Client client = createClient();
+        client.setSummaryOnly(summaryOnly);
+        SampleResult res;
+        if (isMultiStream()) {
+            // Send concurrent H2 requests on one connection
+            res = client.requestStreams(getStreamPaths(), getStreamPriorities());
+        } else {
+            // Send H2 request
+            res = client.request();
+        }
+        client.exportVariables(JMeterContextService.getContext().getVariables());
         return res;
     }
 
+    /**
+     * @return {@code true} if a sample sends several streams rather than a single request
+     */
+    private boolean isMultiStream() {
+        return getStreams() > 1 || !getAdditionalPaths().trim().isEmpty();
+    }
+
+    /**
+     * @return The path of every stream of a sample, each configured path repeated {@link #getStreams()} times
+     */
+    List<String> getStreamPaths() throws UnsupportedEncodingException {
+        final String query = getQueryString();
+        List<String> paths = new ArrayList<String>();
+        paths.add(withQuery(getPath(), query));
+        for (String line : getAdditionalPaths().split("\\r?\\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                // Priority attributes may follow the path
+                paths.add(withQuery(line.split("\\s+", 2)[0], query));
+            }
+        }
+
+        final int streams = Math.max(1, getStreams());
+        List<String> streamPaths = new ArrayList<String>(paths.size() * streams);
+        for (String path : paths) {
+            for (int i = 0; i < streams; i++) {
+                streamPaths.add(path);
+            }
+        }
+        return streamPaths;
+    }
+
+    /**
+     * @return The priority of every stream of a sample, in the order of {@link #getStreamPaths()},
+     *         {@code null} if neither the preset nor any additional path asks for priorities
+     * @throws IllegalArgumentException if the priority attributes of an additional path are invalid
+     */
+    List<Http2Priority> getStreamPriorities() {
+        final String preset = getPriorityPreset();
+        boolean prioritized = !Http2Priority.PRESET_NONE.equals(preset);
+        List<Http2Priority> priorities = new ArrayList<Http2Priority>();
+        priorities.add(Http2Priority.preset(preset, getPath(), true));
+        for (String line : getAdditionalPaths().split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] parts = line.split("\\s+", 2);
+            Http2Priority priority = Http2Priority.preset(preset, parts[0], false);
+            if (parts.length > 1) {
+                priority = Http2Priority.parse(parts[1], priority);
+                prioritized = true;
+            }
+            priorities.add(priority);
+        }
+        if (!prioritized) {
+            return null;
+        }
+
+        // Dependencies name a path by its line, 0 being the main path, and mean its first stream
+        final int streams = Math.max(1, getStreams());
+        List<Http2Priority> streamPriorities = new ArrayList<Http2Priority>(priorities.size() * streams);
+        for (Http2Priority priority : priorities) {
+            if (priority.dependency() >= 0) {
+                priority = priority.withDependency(priority.dependency() * streams);
+            }
+            for (int i = 0; i < streams; i++) {
+                streamPriorities.add(priority);
+            }
+        }
+        return streamPriorities;
+    }
+
+    /**
+     * Return the next request completed by the open-model scheduler of this thread
+     */
+    private SampleResult sampleAsync() throws IOException {
+        if (scheduler == null) {
+            scheduler = new AsyncRequestScheduler(getTargetRate(), getMaxInFlight());
+        }
+        try {
+            return scheduler.next(this);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            SampleResult res = new SampleResult();
+            res.setSuccessful(false);
+            res.setResponseMessage(exception.toString());
+            return res;
+        }
+    }
+
+    /**
+     * Create a client for one request from the current values of the properties
+     */
+    NettyHttp2Client createClient() throws IOException {
+        // Load test elements
+        HeaderManager headerManager = (HeaderManager)getProperty(HTTPSamplerBase.HEADER_MANAGER).getObjectValue();
+
+        // Compiled once per thread, unless the method, server or headers in use change
+        final boolean secure = PROTOCOL_H2.equals(getProtocol());
+        if (template == null || !template.matches(getMethod(), getDomain(), getPort(), secure, headerManager,
+                getSensitiveHeaders())) {
+            template = RequestTemplate.compile(getMethod(), getDomain(), getPort(), secure, headerManager,
+                getSensitiveHeaders());
+        }
+
+        NettyHttp2Client client = new NettyHttp2Client(getMethod(), getDomain(), getPort(),
+            withQuery(getPath(), getQueryString()), headerManager);
+        client.setCleartext(!secure, PROTOCOL_H2C.equals(getProtocol()));
+        client.setSharedConnections(CONNECTION_MODE_SHARED.equals(getConnectionMode()));
+        client.setForceFullHandshake(isForceFullHandshake());
+        client.setMaxRetainedBodyBytes(getMaxRetainedBody());
+        client.setBodyDigest(getBodyDigest(), getExpectedBodyDigest());
+        client.setDebug(isDebug() || JMeterUtils.getPropDefault(DEBUG_PROPERTY, false));
+        client.setSettings(createSettings());
+        client.setFlowControl(Math.max(0, getConnectionWindowSize()), isAutoTuneWindow());
+        client.setSocketOptions(isTcpNoDelay(), getReceiveBufferSize(), getSendBufferSize(), isTcpQuickAck());
+        client.setBody(createBody());
+        client.setHpack(getEncoderTableSize(), getSensitiveHeaders(), isHpackStats());
+        client.setTemplate(template);
+        client.setPushSizeLimit(getPushSizeLimit());
+        client.setSummaryOnly(isAggregate());
+        client.setPing(getPingInterval(), getPingTimeout(), isPingRtt());
+        config = client.configure(config);
+
+        return client;
+    }
+
+    /**
+     * @return The request body, {@code null} if none is configured
+     * @throws IOException if a body file cannot be mapped
+     */
+    private RequestBody createBody() throws IOException {
+        final String source = getBody();
+        if (source.isEmpty()) {
+            return null;
+        }
+        final String type = getBodyType();
+        final String encoding = getBodyEncoding();
+        String text = source;
+        if (BODY_TYPE_VARIABLE.equals(type)) {
+            text = JMeterContextService.getContext().getVariables().get(source);
+            if (text == null) {
+                throw new IllegalArgumentException("Body variable " + source + " is not set");
+            }
+        }
+        if (body != null && text.equals(bodySource) && type.equals(bodyType) && encoding.equals(bodyEncoding)) {
+            return body;
+        }
+        // A file is mapped, and checked for changes, once per thread
+        body = BODY_TYPE_FILE.equals(type)
+            ? RequestBody.file(text).encode(encoding)
+            : RequestBody.bytes(text.getBytes(StandardCharsets.UTF_8)).encode(encoding);
+        bodyType = type;
+        bodySource = text;
+        bodyEncoding = encoding;
+        return body;
+    }
+
+    /**
+     * @return The URL encoded query parameters, empty if there are none
+     */
+    private String getQueryString() throws UnsupportedEncodingException {
+        final String parameters = getQueryParameters();
+        if (parameters.isEmpty()) {
+            return parameters;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String line : parameters.split("\\r?\\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final int separator = line.indexOf('=');
+            final String name = separator < 0 ? line : line.substring(0, separator);
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(URLEncoder.encode(name.trim(), "UTF-8"));
+            if (separator >= 0) {
+                query.append('=').append(URLEncoder.encode(line.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return query.toString();
+    }
+
+    /**
+     * @return {@code path} with {@code query} appended to any query it already has
+     */
+    private static String withQuery(String path, String query) {
+        if (query.isEmpty()) {
+            return path;
+        }
+        return path + (path.indexOf('?') < 0 ? '?' : '&') + query;
+    }
+
+    /**
+     * @return The SETTINGS sent by new connections
+     * @throws IllegalArgumentException if a value is out of the range allowed by the protocol
+     */
+    private Http2Settings createSettings() {
+        if (isCurrent(this.settings)) {
+            return this.settings;
+        }
+        Http2Settings settings = Http2ConnectionConfig.defaultSettings();
+        if (getHeaderTableSize() > SETTING_NOT_SENT) {
+            settings.headerTableSize(getHeaderTableSize());
+        }
+        if (getMaxConcurrentStreams() > SETTING_NOT_SENT) {
+            settings.maxConcurrentStreams(getMaxConcurrentStreams());
+        } else {
+            settings.remove(Http2CodecUtil.SETTINGS_MAX_CONCURRENT_STREAMS);
+        }
+        if (getInitialWindowSize() > SETTING_NOT_SENT) {
+            settings.initialWindowSize(getInitialWindowSize());
+        }
+        if (getMaxFrameSize() > SETTING_NOT_SENT) {
+            settings.maxFrameSize(getMaxFrameSize());
+        }
+        if (getMaxHeaderListSize() > SETTING_NOT_SENT) {
+            settings.maxHeaderListSize(getMaxHeaderListSize());
+        }
+        if (isServerPush()) {
+            settings.pushEnabled(true);
+        }
+        this.settings = settings;
+        return settings;
+    }
+
+    /**
+     * @return {@code true} if {@code settings} holds the values of the properties, which
+     *         {@link #createSettings()} would build
+     */
+    private boolean isCurrent(Http2Settings settings) {
+        return settings != null
+            && isCurrent(settings.headerTableSize(), getHeaderTableSize())
+            && isCurrent(settings.maxConcurrentStreams(), getMaxConcurrentStreams())
+            && isCurrent(settings.initialWindowSize(), getInitialWindowSize())
+            && isCurrent(settings.maxFrameSize(), getMaxFrameSize())
+            && isCurrent(settings.maxHeaderListSize(), getMaxHeaderListSize())
+            && Boolean.valueOf(isServerPush()).equals(settings.pushEnabled());
+    }
+
+    private static boolean isCurrent(Number setting, int property) {
+        return property > SETTING_NOT_SENT ? setting != null && setting.longValue() == property : setting == null;
+    }
+
+    @Override
+    public void testStarted() {
+        EventLoopGroupManager.start();
+    }
+
+    @Override
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    @Override
+    public void testEnded() {
+        Http2ConnectionManager.closeAll();
+        SslContextCache.clear();
+        RequestBody.clear();
+        Http2Aggregator.clear();
+        EventLoopGroupManager.stop();
+    }
+
+    @Override
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    @Override
+    public void threadStarted() {
+        scheduler = null;
+        recorder = null;
+        warmedUp = false;
+        template = null;
+        settings = null;
+        config = null;
+        body = null;
+    }
+
+    @Override
+    public void threadFinished() {
+        scheduler = null;
+        recorder = null;
+        warmedUp = false;
+        template = null;
+        settings = null;
+        config = null;
+        body = null;
+        Http2ConnectionManager.closeThreadConnections();
+    }
+
     public void setMethod(String value) {
       setProperty(METHOD, value);
     }
 
     public String getMethod() {
-      return getPropertyAsString(METHOD);
+      return getPropertyAsString(METHOD, DEFAULT_METHOD);
+    }
+
+    /**
+     * @param value How {@link #getBody()} is interpreted: text, file or variable
+     */
+    public void setBodyType(String value) {
+      setProperty(BODY_TYPE, value);
+    }
+
+    public String getBodyType() {
+      return getPropertyAsString(BODY_TYPE, BODY_TYPE_TEXT);
+    }
+
+    /**
+     * @param value Body text, file path or variable name depending on {@link #getBodyType()}, empty for no body
+     */
+    public void setBody(String value) {
+      setProperty(BODY, value);
+    }
+
+    public String getBody() {
+      return getPropertyAsString(BODY);
+    }
+
+    /**
+     * @param value Content-Encoding the body is compressed with: {@link RequestBody#ENCODING_NONE},
+     *              {@link RequestBody#ENCODING_GZIP} or {@link RequestBody#ENCODING_DEFLATE}
+     */
+    public void setBodyEncoding(String value) {
+      setProperty(BODY_ENCODING, value);
+    }
+
+    public String getBodyEncoding() {
+      return getPropertyAsString(BODY_ENCODING, RequestBody.ENCODING_NONE);
+    }
+
+    /**
+     * @param value Query parameters appended to every path, one {@code name=value} per line, not yet URL encoded
+     */
+    public void setQueryParameters(String value) {
+      setProperty(QUERY_PARAMETERS, value);
+    }
+
+    public String getQueryParameters() {
+      return getPropertyAsString(QUERY_PARAMETERS);
     }
 
     public void setDomain(String value) {
@@ -119,6 +626,403 @@ public class HTTP2Sampler extends AbstractSampler {
       return getPropertyAsString(PATH);
     }
 
+    /**
+     * @param value Further paths requested concurrently with the main one, one per line, each
+     *              optionally followed by priority attributes as read by {@link Http2Priority#parse(String, Http2Priority)}
+     */
+    public void setAdditionalPaths(String value) {
+      setProperty(ADDITIONAL_PATHS, value);
+    }
+
+    public String getAdditionalPaths() {
+      return getPropertyAsString(ADDITIONAL_PATHS);
+    }
+
+    /**
+     * @param value Number of concurrent streams sent per path in each sample
+     */
+    public void setStreams(int value) {
+      setProperty(STREAMS, value);
+    }
+
+    public int getStreams() {
+      return getPropertyAsInt(STREAMS, 1);
+    }
+
+    /**
+     * @param value How connections are established: {@link #PROTOCOL_H2}, {@link #PROTOCOL_H2C_UPGRADE}
+     *              or {@link #PROTOCOL_H2C}
+     */
+    public void setProtocol(String value) {
+      setProperty(PROTOCOL, value);
+    }
+
+    public String getProtocol() {
+      return getPropertyAsString(PROTOCOL, DEFAULT_PROTOCOL);
+    }
+
+    public void setConnectionMode(String value) {
+      setProperty(CONNECTION_MODE, value);
+    }
+
+    public String getConnectionMode() {
+      return getPropertyAsString(CONNECTION_MODE, DEFAULT_CONNECTION_MODE);
+    }
+
+    public void setForceFullHandshake(boolean value) {
+      setProperty(FORCE_FULL_HANDSHAKE, value);
+    }
+
+    public boolean isForceFullHandshake() {
+      return getPropertyAsBoolean(FORCE_FULL_HANDSHAKE, false);
+    }
+
+    /**
+     * @param value Number of response body bytes kept for the result, negative to keep the whole body
+     */
+    public void setMaxRetainedBody(int value) {
+      setProperty(MAX_RETAINED_BODY, value);
+    }
+
+    public int getMaxRetainedBody() {
+      return getPropertyAsInt(MAX_RETAINED_BODY, -1);
+    }
+
+    /**
+     * @param value Digest algorithm (e.g. MD5, SHA-256) computed over the streamed body, empty for none
+     */
+    public void setBodyDigest(String value) {
+      setProperty(BODY_DIGEST, value);
+    }
+
+    public String getBodyDigest() {
+      return getPropertyAsString(BODY_DIGEST);
+    }
+
+    public void setExpectedBodyDigest(String value) {
+      setProperty(EXPECTED_BODY_DIGEST, value);
+    }
+
+    public String getExpectedBodyDigest() {
+      return getPropertyAsString(EXPECTED_BODY_DIGEST);
+    }
+
+    /**
+     * @param value {@code true} to log HTTP/2 frames and response bodies, meant for troubleshooting only
+     */
+    public void setDebug(boolean value) {
+      setProperty(DEBUG, value);
+    }
+
+    public boolean isDebug() {
+      return getPropertyAsBoolean(DEBUG, false);
+    }
+
+    /**
+     * @param value {@code true} to send requests at a target rate without waiting for responses
+     */
+    public void setAsync(boolean value) {
+      setProperty(ASYNC, value);
+    }
+
+    public boolean isAsync() {
+      return getPropertyAsBoolean(ASYNC, false);
+    }
+
+    /**
+     * @param value Requests per second sent by each thread in asynchronous mode
+     */
+    public void setTargetRate(double value) {
+      setProperty(TARGET_RATE, String.valueOf(value));
+    }
+
+    public double getTargetRate() {
+      String value = getPropertyAsString(TARGET_RATE);
+      return value.isEmpty() ? DEFAULT_TARGET_RATE : Double.parseDouble(value);
+    }
+
+    /**
+     * @param value Requests of one thread outstanding at most in asynchronous mode
+     */
+    public void setMaxInFlight(int value) {
+      setProperty(MAX_IN_FLIGHT, value);
+    }
+
+    public int getMaxInFlight() {
+      return getPropertyAsInt(MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param value SETTINGS_HEADER_TABLE_SIZE, {@link #SETTING_NOT_SENT} for the protocol default
+     */
+    public void setHeaderTableSize(int value) {
+      setProperty(HEADER_TABLE_SIZE, value);
+    }
+
+    public int getHeaderTableSize() {
+      return getPropertyAsInt(HEADER_TABLE_SIZE, SETTING_NOT_SENT);
+    }
+
+    /**
+     * @param value SETTINGS_MAX_CONCURRENT_STREAMS, {@link #SETTING_NOT_SENT} for unlimited
+     */
+    public void setMaxConcurrentStreams(int value) {
+      setProperty(MAX_CONCURRENT_STREAMS, value);
+    }
+
+    public int getMaxConcurrentStreams() {
+      return getPropertyAsInt(MAX_CONCURRENT_STREAMS, DEFAULT_MAX_CONCURRENT_STREAMS);
+    }
+
+    /**
+     * @param value SETTINGS_INITIAL_WINDOW_SIZE of every stream, {@link #SETTING_NOT_SENT} for the protocol default
+     */
+    public void setInitialWindowSize(int value) {
+      setProperty(INITIAL_WINDOW_SIZE, value);
+    }
+
+    public int getInitialWindowSize() {
+      return getPropertyAsInt(INITIAL_WINDOW_SIZE, SETTING_NOT_SENT);
+    }
+
+    /**
+     * @param value SETTINGS_MAX_FRAME_SIZE, {@link #SETTING_NOT_SENT} for the protocol default
+     */
+    public void setMaxFrameSize(int value) {
+      setProperty(MAX_FRAME_SIZE, value);
+    }
+
+    public int getMaxFrameSize() {
+      return getPropertyAsInt(MAX_FRAME_SIZE, SETTING_NOT_SENT);
+    }
+
+    /**
+     * @param value SETTINGS_MAX_HEADER_LIST_SIZE, {@link #SETTING_NOT_SENT} for unlimited
+     */
+    public void setMaxHeaderListSize(int value) {
+      setProperty(MAX_HEADER_LIST_SIZE, value);
+    }
+
+    public int getMaxHeaderListSize() {
+      return getPropertyAsInt(MAX_HEADER_LIST_SIZE, SETTING_NOT_SENT);
+    }
+
+    /**
+     * @param value Receive window of the whole connection, {@link #SETTING_NOT_SENT} for the protocol default
+     */
+    public void setConnectionWindowSize(int value) {
+      setProperty(CONNECTION_WINDOW_SIZE, value);
+    }
+
+    public int getConnectionWindowSize() {
+      return getPropertyAsInt(CONNECTION_WINDOW_SIZE, SETTING_NOT_SENT);
+    }
+
+    /**
+     * @param value {@code true} to grow the receive windows with the measured bandwidth-delay product
+     */
+    public void setAutoTuneWindow(boolean value) {
+      setProperty(AUTO_TUNE_WINDOW, value);
+    }
+
+    public boolean isAutoTuneWindow() {
+      return getPropertyAsBoolean(AUTO_TUNE_WINDOW, false);
+    }
+
+    public void setTcpNoDelay(boolean value) {
+      setProperty(TCP_NODELAY, value);
+    }
+
+    public boolean isTcpNoDelay() {
+      return getPropertyAsBoolean(TCP_NODELAY, true);
+    }
+
+    /**
+     * @param value SO_RCVBUF in bytes, -1 for the operating system default
+     */
+    public void setReceiveBufferSize(int value) {
+      setProperty(RECEIVE_BUFFER_SIZE, value);
+    }
+
+    public int getReceiveBufferSize() {
+      return getPropertyAsInt(RECEIVE_BUFFER_SIZE, -1);
+    }
+
+    /**
+     * @param value SO_SNDBUF in bytes, -1 for the operating system default
+     */
+    public void setSendBufferSize(int value) {
+      setProperty(SEND_BUFFER_SIZE, value);
+    }
+
+    public int getSendBufferSize() {
+      return getPropertyAsInt(SEND_BUFFER_SIZE, -1);
+    }
+
+    /**
+     * @param value {@code true} to set TCP_QUICKACK, only honoured by the epoll transport
+     */
+    public void setTcpQuickAck(boolean value) {
+      setProperty(TCP_QUICKACK, value);
+    }
+
+    public boolean isTcpQuickAck() {
+      return getPropertyAsBoolean(TCP_QUICKACK, false);
+    }
+
+    /**
+     * @param value Upper bound of the HPACK encoder's dynamic table, {@link #SETTING_NOT_SENT} for the size the server allows
+     */
+    public void setEncoderTableSize(int value) {
+      setProperty(ENCODER_TABLE_SIZE, value);
+    }
+
+    public int getEncoderTableSize() {
+      return getPropertyAsInt(ENCODER_TABLE_SIZE, SETTING_NOT_SENT);
+    }
+
+    /**
+     * @param value Comma separated names of headers HPACK must never index, such as authorization
+     */
+    public void setSensitiveHeaders(String value) {
+      setProperty(SENSITIVE_HEADERS, value);
+    }
+
+    public String getSensitiveHeaders() {
+      return getPropertyAsString(SENSITIVE_HEADERS);
+    }
+
+    /**
+     * @param value {@code true} to measure header sizes before HPACK and the dynamic table hits and evictions,
+     *              which costs a second pass over every header block
+     */
+    public void setHpackStats(boolean value) {
+      setProperty(HPACK_STATS, value);
+    }
+
+    public boolean isHpackStats() {
+      return getPropertyAsBoolean(HPACK_STATS, false);
+    }
+
+    /**
+     * @param value {@code true} to let the server push responses, recorded as sub-results
+     */
+    public void setServerPush(boolean value) {
+      setProperty(SERVER_PUSH, value);
+    }
+
+    public boolean isServerPush() {
+      return getPropertyAsBoolean(SERVER_PUSH, false);
+    }
+
+    /**
+     * @param value Size in bytes above which pushed responses are cancelled with RST_STREAM, -1 for no limit
+     */
+    public void setPushSizeLimit(long value) {
+      setProperty(PUSH_SIZE_LIMIT, value);
+    }
+
+    public long getPushSizeLimit() {
+      return getPropertyAsLong(PUSH_SIZE_LIMIT, -1);
+    }
+
+    public void setWarmupConnections(int value) {
+      setProperty(WARMUP_CONNECTIONS, value);
+    }
+
+    /**
+     * @return Connections opened to the server before the first sample, 0 for none
+     */
+    public int getWarmupConnections() {
+      return getPropertyAsInt(WARMUP_CONNECTIONS, 0);
+    }
+
+    public void setWarmupRequests(int value) {
+      setProperty(WARMUP_REQUESTS, value);
+    }
+
+    /**
+     * @return Unmeasured requests sent on each warm-up connection
+     */
+    public int getWarmupRequests() {
+      return getPropertyAsInt(WARMUP_REQUESTS, 0);
+    }
+
+    public void setPriorityPreset(String value) {
+      setProperty(PRIORITY_PRESET, value);
+    }
+
+    /**
+     * @return One of {@link Http2Priority#PRESETS}, the priorities streams of multi-stream samples get
+     */
+    public String getPriorityPreset() {
+      return getPropertyAsString(PRIORITY_PRESET, Http2Priority.PRESET_NONE);
+    }
+
+    public void setPingInterval(long value) {
+      setProperty(PING_INTERVAL, value);
+    }
+
+    /**
+     * @return Milliseconds between keep-alive PINGs on every connection, 0 for none
+     */
+    public long getPingInterval() {
+      return getPropertyAsLong(PING_INTERVAL, 0);
+    }
+
+    public void setPingTimeout(long value) {
+      setProperty(PING_TIMEOUT, value);
+    }
+
+    /**
+     * @return Milliseconds a PING may stay unanswered before its connection is closed, 0 to wait forever
+     */
+    public long getPingTimeout() {
+      return getPropertyAsLong(PING_TIMEOUT, Http2Pinger.DEFAULT_TIMEOUT_MS);
+    }
+
+    public void setPingRtt(boolean value) {
+      setProperty(PING_RTT, value);
+    }
+
+    /**
+     * @return {@code true} to add the PING round-trip time of the connection as a sub-result of every sample
+     */
+    public boolean isPingRtt() {
+      return getPropertyAsBoolean(PING_RTT, false);
+    }
+
+    public void setAggregate(boolean value) {
+      setProperty(AGGREGATE, value);
+    }
+
+    public boolean isAggregate() {
+      return getPropertyAsBoolean(AGGREGATE, false);
+    }
+
+    public void setAggregateInterval(int value) {
+      setProperty(AGGREGATE_INTERVAL, value);
+    }
+
+    /**
+     * @return Seconds covered by each summary result
+     */
+    public int getAggregateInterval() {
+      return getPropertyAsInt(AGGREGATE_INTERVAL, DEFAULT_AGGREGATE_INTERVAL);
+    }
+
+    public void setDetailRate(double value) {
+      setProperty(DETAIL_RATE, String.valueOf(value));
+    }
+
+    /**
+     * @return Share of successful samples reported on their own in aggregation mode, from 0 to 1
+     */
+    public double getDetailRate() {
+      String value = getPropertyAsString(DETAIL_RATE);
+      return value.isEmpty() ? 0 : Double.parseDouble(value);
+    }
+
     private HeaderManager getHeaderManager() {
         return (HeaderManager)getProperty(HTTPSamplerBase.HEADER_MANAGER).getObjectValue();
     }
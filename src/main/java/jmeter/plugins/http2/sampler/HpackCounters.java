@@ -0,0 +1,391 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.ArrayDeque;
+import java.util.Map.Entry;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2HeaderTable;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersDecoder;
+import io.netty.handler.codec.http2.Http2HeadersEncoder;
+import io.netty.util.AsciiString;
+
+/**
+ * Measures HPACK compression on one connection, in both directions.
+ *
+ * The encoder and decoder of the connection are wrapped, and every header block passing through
+ * them is scanned: its size on the wire is compared with the size of the header list, and each
+ * field representation is classified. A field sent as an index into the dynamic table is a hit,
+ * a field sent with incremental indexing is an insertion. The sizes of the inserted entries are
+ * tracked in a shadow of the dynamic table, which tells how many entries got evicted.
+ *
+ * Scanning is only done when asked for. Otherwise each block only has its size on the wire
+ * recorded, which the sample needs for its header size anyway.
+ *
+ * Blocks are scanned on the event loop. Totals may be read from any thread.
+ */
+public final class HpackCounters {
+
+    /** Entries beyond this index are in the dynamic table (RFC 7541, Appendix A) */
+    private static final int STATIC_TABLE_LENGTH = 61;
+    /** Overhead added to the size of every dynamic table entry (RFC 7541, 4.1) */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private final boolean scan;
+    private final Direction encoder;
+    private final Direction decoder;
+
+    /**
+     * @param scan {@code true} to scan every header block, {@code false} to only count bytes on the wire
+     */
+    HpackCounters(boolean scan) {
+        this.scan = scan;
+        this.encoder = new Direction(false, scan);
+        this.decoder = new Direction(true, scan);
+    }
+
+    /**
+     * @return {@code true} if the header list sizes and the dynamic table counters are measured
+     */
+    public boolean scanning() {
+        return scan;
+    }
+
+    /**
+     * @return The counters of header blocks sent
+     */
+    public Direction encoder() {
+        return encoder;
+    }
+
+    /**
+     * @return The counters of header blocks received
+     */
+    public Direction decoder() {
+        return decoder;
+    }
+
+    /**
+     * @param delegate The encoder doing the actual work
+     * @param maxTableSize Upper bound of the encoder's dynamic table, negative to accept whatever
+     *                     the server announces
+     */
+    Http2HeadersEncoder meter(final Http2HeadersEncoder delegate, int maxTableSize) throws Http2Exception {
+        final Http2HeaderTable table = maxTableSize < 0 ? delegate.configuration().headerTable()
+            : new BoundedHeaderTable(delegate.configuration().headerTable(), maxTableSize);
+        if (maxTableSize >= 0) {
+            // Announced with a size update in the next header block
+            table.maxHeaderTableSize(Http2CodecUtil.DEFAULT_HEADER_TABLE_SIZE);
+        }
+        final Http2HeadersEncoder.Configuration configuration = new Http2HeadersEncoder.Configuration() {
+            @Override
+            public Http2HeaderTable headerTable() {
+                return table;
+            }
+        };
+        return new Http2HeadersEncoder() {
+            @Override
+            public void encodeHeaders(Http2Headers headers, ByteBuf buffer) throws Http2Exception {
+                final int start = buffer.writerIndex();
+                delegate.encodeHeaders(headers, buffer);
+                encoder.block(buffer, start, buffer.writerIndex(), headers);
+            }
+
+            @Override
+            public Configuration configuration() {
+                return configuration;
+            }
+        };
+    }
+
+    /**
+     * @param delegate The decoder doing the actual work
+     */
+    Http2HeadersDecoder meter(final Http2HeadersDecoder delegate) {
+        return new Http2HeadersDecoder() {
+            @Override
+            public Http2Headers decodeHeaders(ByteBuf buffer) throws Http2Exception {
+                final int start = buffer.readerIndex();
+                final int end = buffer.writerIndex();
+                final Http2Headers headers = delegate.decodeHeaders(buffer);
+                decoder.block(buffer, start, end, headers);
+                return headers;
+            }
+
+            @Override
+            public Configuration configuration() {
+                return delegate.configuration();
+            }
+        };
+    }
+
+    /**
+     * Caps the dynamic table of the encoder below the size the server allows
+     */
+    private static final class BoundedHeaderTable implements Http2HeaderTable {
+        private final Http2HeaderTable delegate;
+        private final int limit;
+
+        BoundedHeaderTable(Http2HeaderTable delegate, int limit) {
+            this.delegate = delegate;
+            this.limit = limit;
+        }
+
+        @Override
+        public void maxHeaderTableSize(int max) throws Http2Exception {
+            delegate.maxHeaderTableSize(Math.min(max, limit));
+        }
+
+        @Override
+        public int maxHeaderTableSize() {
+            return delegate.maxHeaderTableSize();
+        }
+
+        @Override
+        public void maxHeaderListSize(int max) throws Http2Exception {
+            delegate.maxHeaderListSize(max);
+        }
+
+        @Override
+        public int maxHeaderListSize() {
+            return delegate.maxHeaderListSize();
+        }
+    }
+
+    /**
+     * Counters of one direction of the connection
+     */
+    public static final class Direction {
+        private final boolean wireOrder;
+        private final boolean scan;
+
+        private volatile long blocks;
+        private volatile long wireBytes;
+        private volatile long headerBytes;
+        private volatile long hits;
+        private volatile long insertions;
+        private volatile long evictions;
+        private int lastWireBytes;
+        private int lastHeaderBytes;
+
+        // Shadow of the dynamic table, only the entry sizes are needed
+        private final ArrayDeque<Integer> entries = new ArrayDeque<Integer>();
+        private int tableSize;
+        private int capacity = Http2CodecUtil.DEFAULT_HEADER_TABLE_SIZE;
+
+        /**
+         * @param wireOrder {@code true} if the headers iterate in the order they were sent, otherwise the
+         *                  pseudo-headers were sent first, the way Netty's encoder writes them
+         * @param scan {@code false} to only count bytes on the wire
+         */
+        Direction(boolean wireOrder, boolean scan) {
+            this.wireOrder = wireOrder;
+            this.scan = scan;
+        }
+
+        /**
+         * @return Header blocks seen
+         */
+        public long blocks() {
+            return blocks;
+        }
+
+        /**
+         * @return Bytes of all header blocks on the wire, i.e. after HPACK
+         */
+        public long wireBytes() {
+            return wireBytes;
+        }
+
+        /**
+         * @return Octets of all header names and values before HPACK, 0 unless scanning
+         */
+        public long headerBytes() {
+            return headerBytes;
+        }
+
+        /**
+         * @return Fields sent as an index into the dynamic table, 0 unless scanning
+         */
+        public long hits() {
+            return hits;
+        }
+
+        /**
+         * @return Fields added to the dynamic table, 0 unless scanning
+         */
+        public long insertions() {
+            return insertions;
+        }
+
+        /**
+         * @return Entries evicted from the dynamic table to make room, 0 unless scanning
+         */
+        public long evictions() {
+            return evictions;
+        }
+
+        /**
+         * @return Bytes on the wire of the last header block, only valid on the event loop
+         */
+        int lastWireBytes() {
+            return lastWireBytes;
+        }
+
+        /**
+         * @return Octets of the names and values of the last header block, only valid on the event loop
+         */
+        int lastHeaderBytes() {
+            return lastHeaderBytes;
+        }
+
+        /**
+         * Scan one header block
+         *
+         * @param buffer Holds the block between {@code start} and {@code end}
+         * @param headers The header list the block encodes
+         */
+        void block(ByteBuf buffer, int start, int end, Http2Headers headers) {
+            lastWireBytes = end - start;
+            blocks++;
+            wireBytes += lastWireBytes;
+            if (!scan) {
+                return;
+            }
+
+            final int[] sizes = fieldSizes(headers);
+            int octets = 0;
+            for (int size : sizes) {
+                octets += size - ENTRY_OVERHEAD;
+            }
+            lastHeaderBytes = octets;
+            headerBytes += octets;
+
+            int field = 0;
+            int[] position = { start };
+            while (position[0] < end) {
+                final int first = buffer.getUnsignedByte(position[0]);
+                if ((first & 0x80) != 0) {
+                    // Indexed header field
+                    if (readInteger(buffer, position, 7) > STATIC_TABLE_LENGTH) {
+                        hits++;
+                    }
+                    field++;
+                } else if ((first & 0x40) != 0) {
+                    // Literal header field with incremental indexing
+                    if (readInteger(buffer, position, 6) == 0) {
+                        skipString(buffer, position);
+                    }
+                    skipString(buffer, position);
+                    if (field < sizes.length) {
+                        insert(sizes[field]);
+                    }
+                    field++;
+                } else if ((first & 0x20) != 0) {
+                    // Dynamic table size update
+                    resize(readInteger(buffer, position, 5));
+                } else {
+                    // Literal header field without indexing or never indexed
+                    if (readInteger(buffer, position, 4) == 0) {
+                        skipString(buffer, position);
+                    }
+                    skipString(buffer, position);
+                    field++;
+                }
+            }
+        }
+
+        private void insert(int size) {
+            insertions++;
+            if (size > capacity) {
+                // Too large for the table: the whole table is emptied and the entry not added
+                evict(0);
+                return;
+            }
+            evict(capacity - size);
+            entries.addFirst(size);
+            tableSize += size;
+        }
+
+        private void resize(int newCapacity) {
+            capacity = newCapacity;
+            evict(newCapacity);
+        }
+
+        private void evict(int maxSize) {
+            while (tableSize > maxSize) {
+                tableSize -= entries.removeLast();
+                evictions++;
+            }
+        }
+
+        /**
+         * @return The HPACK size of every field, in the order they were encoded
+         */
+        private int[] fieldSizes(Http2Headers headers) {
+            final int[] sizes = new int[headers.size()];
+            int i = 0;
+            if (!wireOrder) {
+                for (Http2Headers.PseudoHeaderName pseudoHeader : Http2Headers.PseudoHeaderName.values()) {
+                    AsciiString value = headers.get(pseudoHeader.value());
+                    if (value != null) {
+                        sizes[i++] = pseudoHeader.value().length() + value.length() + ENTRY_OVERHEAD;
+                    }
+                }
+            }
+            for (Entry<AsciiString, AsciiString> entry : headers) {
+                if (!wireOrder && Http2Headers.PseudoHeaderName.isPseudoHeader(entry.getKey())) {
+                    continue;
+                }
+                if (i < sizes.length) {
+                    sizes[i++] = entry.getKey().length() + entry.getValue().length() + ENTRY_OVERHEAD;
+                }
+            }
+            return sizes;
+        }
+    }
+
+    /**
+     * Read an integer with an N-bit prefix (RFC 7541, 5.1) and advance past it
+     */
+    private static int readInteger(ByteBuf buffer, int[] position, int prefixBits) {
+        final int mask = (1 << prefixBits) - 1;
+        int value = buffer.getUnsignedByte(position[0]++) & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            b = buffer.getUnsignedByte(position[0]++);
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 28);
+        return value;
+    }
+
+    /**
+     * Advance past a string literal (RFC 7541, 5.2), Huffman encoded or not
+     */
+    private static void skipString(ByteBuf buffer, int[] position) {
+        final int length = readInteger(buffer, position, 7);
+        position[0] += length;
+    }
+}
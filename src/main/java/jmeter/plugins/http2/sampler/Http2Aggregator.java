@@ -0,0 +1,304 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Aggregates the samples of one sampler label into HdrHistograms, for request rates the listeners cannot keep up with.
+ *
+ * Every JMeter thread records elapsed time, time to first byte and bytes of its samples into
+ * {@link Recorder}s of its own, which never block the recording thread. Once per interval, the
+ * next thread completing a sample collects the interval histograms of all threads and emits one
+ * summary {@link SampleResult}. The summary is a batch result in JMeter's sense: its sample count
+ * and bytes are those of the samples it stands for, and it spans exactly its interval, so
+ * listeners and result files get throughput right. Its elapsed time is the interval, not a time
+ * of the samples: their percentiles, means and elapsed totals are in its response data.
+ *
+ * Samples reported individually, errors and the configured share of detailed samples, are still
+ * recorded in the histograms, but not counted in the summary results.
+ *
+ * If {@value #LOG_PROPERTY} names a file, every interval is also written to it in the compact
+ * HdrHistogram log format, which can be read with HistogramLogProcessor.
+ */
+public final class Http2Aggregator {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    /** JMeter property with the path of an HdrHistogram log to write the intervals to */
+    public static final String LOG_PROPERTY = "http2sampler.histogram_log";
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] PERCENTILES = { 50, 90, 95, 99, 99.9 };
+
+    private static final ConcurrentMap<String, Http2Aggregator> aggregators =
+        new ConcurrentHashMap<String, Http2Aggregator>();
+
+    private static final ReentrantLock logLock = new ReentrantLock();
+    private static HistogramLogWriter logWriter;
+    private static PrintStream logStream;
+
+    private final String label;
+    private final long intervalMillis;
+    private final AtomicLong nextEmission;
+    private final List<ThreadRecorder> threads = new CopyOnWriteArrayList<ThreadRecorder>();
+    private long intervalStart;
+    private final ReentrantLock collectLock = new ReentrantLock();
+
+    // Only touched by the thread emitting a summary, holding collectLock
+    private final Histogram elapsed = new Histogram(SIGNIFICANT_DIGITS);
+    private final Histogram firstByte = new Histogram(SIGNIFICANT_DIGITS);
+    private final Histogram bytes = new Histogram(SIGNIFICANT_DIGITS);
+
+    private Http2Aggregator(String label, long intervalMillis) {
+        this.label = label;
+        this.intervalMillis = intervalMillis;
+        this.intervalStart = System.currentTimeMillis();
+        this.nextEmission = new AtomicLong(intervalStart + intervalMillis);
+    }
+
+    /**
+     * @return The aggregator of the samples labelled {@code label}, created with {@code intervalMillis} on first use
+     */
+    public static Http2Aggregator get(String label, long intervalMillis) {
+        Http2Aggregator aggregator = aggregators.get(label);
+        if (aggregator == null) {
+            final Http2Aggregator created = new Http2Aggregator(label, Math.max(1, intervalMillis));
+            aggregator = aggregators.putIfAbsent(label, created);
+            if (aggregator == null) {
+                aggregator = created;
+            }
+        }
+        return aggregator;
+    }
+
+    /**
+     * Write the last, partial interval of every aggregator to the log and forget them, at the end of a test
+     */
+    public static void clear() {
+        for (Http2Aggregator aggregator : aggregators.values()) {
+            aggregator.collectLock.lock();
+            try {
+                aggregator.collect(System.currentTimeMillis());
+            } finally {
+                aggregator.collectLock.unlock();
+            }
+        }
+        aggregators.clear();
+        logLock.lock();
+        try {
+            if (logStream != null) {
+                logStream.close();
+                logStream = null;
+                logWriter = null;
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * @return Histograms for the calling JMeter thread to record its samples into
+     */
+    public ThreadRecorder register() {
+        final ThreadRecorder recorder = new ThreadRecorder();
+        threads.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * @return A summary of the interval if it is over and no other thread is emitting it, otherwise {@code null}
+     */
+    public SampleResult poll() {
+        final long now = System.currentTimeMillis();
+        final long next = nextEmission.get();
+        if (now < next || !nextEmission.compareAndSet(next, now + intervalMillis)) {
+            return null;
+        }
+        final SampleResult summary;
+        collectLock.lock();
+        try {
+            summary = collect(now);
+        } finally {
+            collectLock.unlock();
+        }
+        // An idle interval is only logged, a batch of no samples would count as one sample in the listeners
+        return summary.getSampleCount() > 0 ? summary : null;
+    }
+
+    /**
+     * Drain the recorders of all threads into a summary of the interval ending {@code now}
+     */
+    private SampleResult collect(long now) {
+        elapsed.reset();
+        firstByte.reset();
+        bytes.reset();
+        long count = 0;
+        long elapsedSum = 0;
+        long latencySum = 0;
+        long bytesSum = 0;
+        for (ThreadRecorder thread : threads) {
+            thread.elapsedInterval = thread.elapsed.getIntervalHistogram(thread.elapsedInterval);
+            thread.firstByteInterval = thread.firstByte.getIntervalHistogram(thread.firstByteInterval);
+            thread.bytesInterval = thread.bytes.getIntervalHistogram(thread.bytesInterval);
+            elapsed.add(thread.elapsedInterval);
+            firstByte.add(thread.firstByteInterval);
+            bytes.add(thread.bytesInterval);
+            count += thread.count.getAndSet(0);
+            elapsedSum += thread.elapsedSum.getAndSet(0);
+            latencySum += thread.latencySum.getAndSet(0);
+            bytesSum += thread.bytesSum.getAndSet(0);
+        }
+        final long start = intervalStart;
+        intervalStart = now;
+        writeLog(start, now);
+
+        final SampleResult summary = new SampleResult();
+        summary.setSampleLabel(label);
+        // Stamp plus elapsed must not reach beyond the interval, listeners compute throughput over that span
+        summary.setStampAndTime(start, now - start);
+        summary.setSampleCount((int) Math.min(count, Integer.MAX_VALUE));
+        summary.setErrorCount(0);
+        summary.setBytes((int) Math.min(bytesSum, Integer.MAX_VALUE));
+        summary.setSuccessful(true);
+        summary.setResponseCodeOK();
+        summary.setResponseMessage("Summary of " + count + " samples");
+        summary.setDataType(SampleResult.TEXT);
+        final String description = describe(now - start)
+            + "summarised=" + count + " elapsed_total_ms=" + elapsedSum + " first_byte_total_ms=" + latencySum
+            + " bytes_total=" + bytesSum + '\n';
+        summary.setResponseData(description.getBytes(StandardCharsets.UTF_8));
+        return summary;
+    }
+
+    /**
+     * @return The percentiles of the interval, all samples of the interval included
+     */
+    private String describe(long intervalLength) {
+        final StringBuilder text = new StringBuilder(256);
+        text.append("interval_ms=").append(intervalLength).append('\n');
+        text.append("samples=").append(elapsed.getTotalCount()).append('\n');
+        describe(text, "elapsed_ms", elapsed);
+        describe(text, "first_byte_ms", firstByte);
+        describe(text, "bytes", bytes);
+        return text.toString();
+    }
+
+    private static void describe(StringBuilder text, String name, Histogram histogram) {
+        text.append(name).append(':');
+        text.append(" min=").append(histogram.getMinValue());
+        text.append(" mean=").append(Math.round(histogram.getMean()));
+        for (double percentile : PERCENTILES) {
+            text.append(" p").append(percentile % 1 == 0 ? String.valueOf((int) percentile) : String.valueOf(percentile));
+            text.append('=').append(histogram.getValueAtPercentile(percentile));
+        }
+        text.append(" max=").append(histogram.getMaxValue()).append('\n');
+    }
+
+    private void writeLog(long start, long end) {
+        final String path = JMeterUtils.getProperty(LOG_PROPERTY);
+        if (path == null || path.trim().isEmpty()) {
+            return;
+        }
+        final String tag = label.replaceAll("[^A-Za-z0-9_.-]", "_");
+        logLock.lock();
+        try {
+            if (logWriter == null) {
+                try {
+                    logStream = new PrintStream(new File(path.trim()));
+                } catch (FileNotFoundException exception) {
+                    log.warn("Cannot write histogram log " + path, exception);
+                    return;
+                }
+                logWriter = new HistogramLogWriter(logStream);
+                logWriter.outputLogFormatVersion();
+                logWriter.outputStartTime(start);
+                logWriter.setBaseTime(start);
+                logWriter.outputLegend();
+            }
+            writeLog(elapsed, tag + ".elapsed_ms", start, end);
+            writeLog(firstByte, tag + ".first_byte_ms", start, end);
+            writeLog(bytes, tag + ".bytes", start, end);
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private static void writeLog(Histogram histogram, String tag, long start, long end) {
+        histogram.setStartTimeStamp(start);
+        histogram.setEndTimeStamp(end);
+        histogram.setTag(tag);
+        logWriter.outputIntervalHistogram(histogram);
+    }
+
+    /**
+     * The histograms and counters of one JMeter thread, written by that thread only
+     */
+    public static final class ThreadRecorder {
+        private final Recorder elapsed = new Recorder(SIGNIFICANT_DIGITS);
+        private final Recorder firstByte = new Recorder(SIGNIFICANT_DIGITS);
+        private final Recorder bytes = new Recorder(SIGNIFICANT_DIGITS);
+        // Totals of the samples left to the summary
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong elapsedSum = new AtomicLong();
+        private final AtomicLong latencySum = new AtomicLong();
+        private final AtomicLong bytesSum = new AtomicLong();
+
+        // Recycled by the emitting thread
+        private Histogram elapsedInterval;
+        private Histogram firstByteInterval;
+        private Histogram bytesInterval;
+
+        private ThreadRecorder() {
+        }
+
+        /**
+         * @param result A completed sample
+         * @param reported {@code true} if {@code result} is reported on its own rather than in the summary
+         */
+        public void record(SampleResult result, boolean reported) {
+            final long time = Math.max(0, result.getTime());
+            final long latency = Math.max(0, result.getLatency());
+            final long size = Math.max(0, result.getBytes());
+            elapsed.recordValue(time);
+            firstByte.recordValue(latency);
+            bytes.recordValue(size);
+            if (!reported) {
+                count.incrementAndGet();
+                elapsedSum.addAndGet(time);
+                latencySum.addAndGet(latency);
+                bytesSum.addAndGet(size);
+            }
+        }
+    }
+}
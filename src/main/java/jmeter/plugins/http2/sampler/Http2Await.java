@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+/**
+ * Waits for Netty futures without holding a monitor.
+ *
+ * Netty's await methods wait on the monitor of the future, which pins a virtual thread to its
+ * carrier thread for as long as it waits. These wait on a latch counted down by a listener
+ * instead, so a virtual thread unmounts while it waits, and a waiting virtual user costs no
+ * platform thread. Like {@link Future#awaitUninterruptibly()}, they keep waiting when interrupted
+ * and restore the interrupt status afterwards.
+ */
+final class Http2Await {
+
+    private Http2Await() {
+    }
+
+    /**
+     * Wait until {@code future} is done
+     */
+    static <V> void awaitUninterruptibly(Future<V> future) {
+        if (future.isDone()) {
+            return;
+        }
+        final CountDownLatch latch = latch(future);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    latch.await();
+                    return;
+                } catch (InterruptedException exception) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait until {@code future} is done or the timeout elapsed
+     *
+     * @return {@code true} if {@code future} is done
+     */
+    static <V> boolean awaitUninterruptibly(Future<V> future, long timeout, TimeUnit unit) {
+        if (future.isDone()) {
+            return true;
+        }
+        final CountDownLatch latch = latch(future);
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException exception) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static <V> CountDownLatch latch(Future<V> future) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        future.addListener(new GenericFutureListener<Future<V>>() {
+            @Override
+            public void operationComplete(Future<V> completed) {
+                latch.countDown();
+            }
+        });
+        return latch;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http2.HttpUtil;
+import io.netty.util.concurrent.Future;
+
+/**
+ * An established HTTP/2 connection which can carry requests of several samples, possibly
+ * issued by different threads at the same time.
+ */
+public class Http2ClientConnection {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private final String key;
+    private final Channel channel;
+    private final Http2ClientInitializer initializer;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicReference<Http2Timings> setupTimings;
+
+    // Guards nextStreamId; a lock rather than a monitor, so waiting virtual threads are not pinned
+    private final ReentrantLock streamIdLock = new ReentrantLock();
+    private int nextStreamId;
+
+    private Http2ClientConnection(String key, Channel channel, Http2ClientInitializer initializer,
+            int firstStreamId, Http2Timings setupTimings) {
+        this.key = key;
+        this.setupTimings = new AtomicReference<Http2Timings>(setupTimings);
+        this.channel = channel;
+        this.initializer = initializer;
+        this.nextStreamId = firstStreamId;
+    }
+
+    /**
+     * Open a new connection and wait until the server SETTINGS have been received
+     *
+     * @param config Describes the server and how to connect to it
+     * @param timeout Time to wait for the connection to become ready
+     * @param unit {@link TimeUnit} for {@code timeout}
+     * @return A connection ready to accept streams
+     * @throws Exception if connecting or the HTTP/2 preface exchange fails
+     */
+    public static Http2ClientConnection connect(Http2ConnectionConfig config, long timeout, TimeUnit unit)
+            throws Exception {
+        Http2ClientInitializer initializer = new Http2ClientInitializer(config);
+        Bootstrap b = new Bootstrap();
+        final Http2Transport transport = EventLoopGroupManager.transport();
+        b.group(EventLoopGroupManager.get());
+        b.channel(transport.channelClass());
+        b.option(ChannelOption.SO_KEEPALIVE, true);
+        // Pooled (direct where possible) buffers for frames and bodies keep uploads from churning the GC
+        b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        b.option(ChannelOption.TCP_NODELAY, config.tcpNoDelay());
+        if (config.receiveBufferSize() > 0) {
+            b.option(ChannelOption.SO_RCVBUF, config.receiveBufferSize());
+        }
+        if (config.sendBufferSize() > 0) {
+            b.option(ChannelOption.SO_SNDBUF, config.sendBufferSize());
+        }
+        if (config.tcpQuickAck()) {
+            ChannelOption<Boolean> tcpQuickAck = transport.tcpQuickAck();
+            if (tcpQuickAck != null) {
+                b.option(tcpQuickAck, true);
+            } else if (log.isDebugEnabled()) {
+                log.debug("TCP_QUICKACK is not supported by the " + transport.name() + " transport");
+            }
+        }
+        b.handler(initializer);
+
+        final long startNanos = System.nanoTime();
+        final InetSocketAddress address = new InetSocketAddress(config.host(), config.port());
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(config.host());
+        }
+        final long resolvedNanos = System.nanoTime();
+
+        final ChannelFuture connectFuture = b.connect(address);
+        Http2Await.awaitUninterruptibly(connectFuture);
+        Channel channel = connectFuture.syncUninterruptibly().channel();
+        final long connectedNanos = System.nanoTime();
+
+        // Wait for the HTTP/2 upgrade to occur.
+        try {
+            initializer.settingsHandler().awaitSettings(timeout, unit);
+        } catch (Exception exception) {
+            channel.close();
+            throw exception;
+        }
+        initializer.windowTuner().start(channel);
+        initializer.pinger().start(channel);
+
+        // Stream 1 is consumed by the upgrade request on upgraded cleartext connections
+        final int firstStreamId = config.sslContext() != null || config.priorKnowledge() ? 1 : 3;
+
+        // The handshake and SETTINGS times were taken on the event loop
+        final long handshakeNanos = initializer.handshakeNanos() != 0 ? initializer.handshakeNanos() : connectedNanos;
+        final long settingsNanos = initializer.settingsHandler().receivedNanos();
+        final Http2Timings timings = new Http2Timings(
+            TimeUnit.NANOSECONDS.toMillis(resolvedNanos - startNanos),
+            TimeUnit.NANOSECONDS.toMillis(connectedNanos - resolvedNanos),
+            TimeUnit.NANOSECONDS.toMillis(Math.max(0, handshakeNanos - connectedNanos)),
+            TimeUnit.NANOSECONDS.toMillis(Math.max(0, settingsNanos - Math.max(handshakeNanos, connectedNanos))));
+
+        return new Http2ClientConnection(config.key(), channel, initializer, firstStreamId, timings);
+    }
+
+    public String key() {
+        return key;
+    }
+
+    /**
+     * @return The timings of establishing this connection for the first caller, {@code null} afterwards
+     */
+    public Http2Timings takeSetupTimings() {
+        return setupTimings.getAndSet(null);
+    }
+
+    public Channel channel() {
+        return channel;
+    }
+
+    public HttpResponseHandler responseHandler() {
+        return initializer.responseHandler();
+    }
+
+    /**
+     * Send a PING to measure the round-trip time of this connection
+     *
+     * @return Completed with the round-trip time in microseconds, failed if the connection closed
+     *         or did not answer in time
+     */
+    public Future<Long> ping() {
+        return initializer.pinger().ping(channel);
+    }
+
+    /**
+     * @return The round-trip time of the last PING answered on this connection, in microseconds, -1 if none was
+     */
+    public long pingRttMicros() {
+        return initializer.pinger().lastRttMicros();
+    }
+
+    /**
+     * @return {@code true} while new streams may still be opened on this connection
+     */
+    public boolean isUsable() {
+        return channel.isActive() && !initializer.connection().goAwayReceived() && !isStreamIdExhausted();
+    }
+
+    /**
+     * Reserve a slot for a new stream, respecting the SETTINGS_MAX_CONCURRENT_STREAMS of the server
+     *
+     * @return {@code true} if a stream may be opened, in which case {@link #releaseStream()} must follow
+     */
+    public boolean reserveStream() {
+        while (isUsable()) {
+            int current = activeStreams.get();
+            // Read on every attempt, the server may change it at any time
+            if (current >= initializer.settingsHandler().maxConcurrentStreams()) {
+                return false;
+            }
+            if (activeStreams.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release a slot previously taken by {@link #reserveStream()}
+     */
+    public void releaseStream() {
+        activeStreams.decrementAndGet();
+    }
+
+    public int activeStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * Send a request on a newly allocated stream
+     *
+     * Stream ids are allocated and the request is queued to the channel under the same lock,
+     * so that they reach the wire in increasing order as required by the protocol.
+     *
+     * @param request The request to send
+     * @param response The response to fill as the frames of the stream arrive
+     * @return The stream id the response will arrive on
+     * @throws IllegalStateException if this connection has run out of stream ids
+     */
+    public int send(FullHttpRequest request, final Http2Response response) {
+        streamIdLock.lock();
+        try {
+            if (isStreamIdExhausted()) {
+                request.release();
+                throw new IllegalStateException("No stream ids left on connection to " + key);
+            }
+            final int streamId = nextStreamId;
+            nextStreamId += 2;
+
+            request.headers().setInt(HttpUtil.ExtensionHeaderNames.STREAM_ID.text(), streamId);
+            response.streamId(streamId);
+            response.hpack(initializer.hpack());
+            responseHandler().put(streamId, channel.newPromise(), response);
+            response.send();
+            channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (future.isSuccess()) {
+                        response.requestSent();
+                    } else if (initializer.connection().goAwayReceived()) {
+                        // Reserved before the GOAWAY arrived, never seen by the server
+                        response.promise().tryFailure(HttpResponseHandler.refused(streamId, "GOAWAY"));
+                    } else {
+                        response.promise().tryFailure(future.cause());
+                    }
+                }
+            });
+
+            return streamId;
+        } finally {
+            streamIdLock.unlock();
+        }
+    }
+
+    public void close() {
+        channel.close();
+    }
+
+    private boolean isStreamIdExhausted() {
+        streamIdLock.lock();
+        try {
+            // Overflows to a negative value once the 31 bit stream id space is used up
+            return nextStreamId <= 0;
+        } finally {
+            streamIdLock.unlock();
+        }
+    }
+}
@@ -20,6 +20,7 @@ package jmeter.plugins.http2.sampler;
 
 import static io.netty.handler.logging.LogLevel.INFO;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
@@ -30,59 +31,90 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpClientUpgradeHandler;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http2.DefaultHttp2Connection;
 import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
 import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersDecoder;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersEncoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
 import io.netty.handler.codec.http2.DelegatingDecompressorFrameListener;
 import io.netty.handler.codec.http2.Http2ClientUpgradeCodec;
 import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Exception;
 import io.netty.handler.codec.http2.Http2ConnectionHandler;
 import io.netty.handler.codec.http2.Http2FrameLogger;
 import io.netty.handler.codec.http2.Http2FrameReader;
 import io.netty.handler.codec.http2.Http2FrameWriter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersEncoder;
 import io.netty.handler.codec.http2.Http2InboundFrameLogger;
 import io.netty.handler.codec.http2.Http2OutboundFrameLogger;
-import io.netty.handler.codec.http2.Http2Settings;
 import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
-import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
 
 /**
  * Configures the client pipeline to support HTTP/2 frames.
+ *
+ * Frame and user event logging is only wired in when the connection is opened in debug mode,
+ * otherwise the pipeline carries no logging handlers at all.
  */
 public class Http2ClientInitializer extends ChannelInitializer<SocketChannel> {
+    private static final Logger log = LoggingManager.getLoggerForClass();
     private static final Http2FrameLogger logger = new Http2FrameLogger(INFO, Http2ClientInitializer.class);
 
+    private final Http2ConnectionConfig config;
     private final SslContext sslCtx;
-    private final int maxContentLength;
     /* private HttpToHttp2ConnectionHandler connectionHandler; */
     private Http2ConnectionHandler connectionHandler;
     private HttpResponseHandler responseHandler;
     private Http2SettingsHandler settingsHandler;
+    private Http2WindowTuner windowTuner;
+    private Http2Pinger pinger;
+    private final HpackCounters hpack;
+    private volatile long handshakeNanos;
 
-    public Http2ClientInitializer(SslContext sslCtx, int maxContentLength) {
-        this.sslCtx = sslCtx;
-        this.maxContentLength = maxContentLength;
+    public Http2ClientInitializer(Http2ConnectionConfig config) {
+        this.config = config;
+        this.sslCtx = config.sslContext();
+        this.hpack = new HpackCounters(config.hpackStats());
     }
 
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         final Http2Connection connection = new DefaultHttp2Connection(false);
 
+        responseHandler = new HttpResponseHandler(config.debug());
+        final Http2ResponseListener listener = new Http2ResponseListener(responseHandler);
         connectionHandler = new HttpToHttp2ConnectionHandler(connection,
                 frameReader(),
                 frameWriter(),
-                new DelegatingDecompressorFrameListener(connection,
-                        new InboundHttp2ToHttpAdapter.Builder(connection)
-                                .maxContentLength(maxContentLength)
-                                .propagateSettings(true)
-                                .build()));
-        responseHandler = new HttpResponseHandler();
+                new DelegatingDecompressorFrameListener(connection, listener));
+        responseHandler.connectionHandler(connectionHandler);
+        // Sent in the connection preface (or the upgrade request) and applied to the local endpoint
+        connectionHandler.decoder().localSettings(config.settings());
+        windowTuner = new Http2WindowTuner(connectionHandler, config.settings(), config.connectionWindowSize(),
+                config.autoTuneWindow());
+        listener.windowTuner(windowTuner);
+        pinger = new Http2Pinger(connectionHandler, config.pingInterval(), config.pingTimeout());
+        listener.pinger(pinger);
+        listener.hpack(hpack);
+        if (config.pushEnabled()) {
+            listener.push(connectionHandler, config.pushSizeLimit());
+        }
         settingsHandler = new Http2SettingsHandler(ch.newPromise());
         if (sslCtx != null) {
             configureSsl(ch);
+        } else if (config.priorKnowledge()) {
+            configurePriorKnowledge(ch);
         } else {
             configureClearText(ch);
         }
@@ -96,6 +128,32 @@ public class Http2ClientInitializer extends ChannelInitializer<SocketChannel> {
         return settingsHandler;
     }
 
+    /**
+     * @return The {@link System#nanoTime()} the TLS handshake completed at, 0 for cleartext or while in progress
+     */
+    public long handshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * @return The HPACK compression counters of the connection
+     */
+    public HpackCounters hpack() {
+        return hpack;
+    }
+
+    public Http2WindowTuner windowTuner() {
+        return windowTuner;
+    }
+
+    public Http2Pinger pinger() {
+        return pinger;
+    }
+
+    public Http2Connection connection() {
+        return connectionHandler.connection();
+    }
+
     protected void configureEndOfPipeline(ChannelPipeline pipeline) {
         pipeline.addLast("Http2SettingsHandler", settingsHandler);
         pipeline.addLast("HttpResponseHandler", responseHandler);
@@ -106,9 +164,35 @@ public class Http2ClientInitializer extends ChannelInitializer<SocketChannel> {
      */
     private void configureSsl(SocketChannel ch) {
         ChannelPipeline pipeline = ch.pipeline();
-        pipeline.addLast("SslHandler", sslCtx.newHandler(ch.alloc()));
+        // Passing the peer lets the engine send SNI and resume a cached session of the same server
+        final SslHandler sslHandler = sslCtx.newHandler(ch.alloc(), config.host(), config.port());
+        sslHandler.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                // ALPN is negotiated within the handshake, so this covers it as well
+                handshakeNanos = System.nanoTime();
+                if (config.forceFullHandshake()) {
+                    // An invalidated session is never offered for resumption
+                    sslHandler.engine().getSession().invalidate();
+                }
+            }
+        });
+        pipeline.addLast("SslHandler", sslHandler);
+        pipeline.addLast("Http2Handler", connectionHandler);
+        configureEndOfPipeline(pipeline);
+    }
+
+    /**
+     * Configure the pipeline for cleartext HTTP/2 with prior knowledge: the connection preface is
+     * sent as soon as the connection is up, saving the round trip of an upgrade.
+     */
+    private void configurePriorKnowledge(SocketChannel ch) {
+        ChannelPipeline pipeline = ch.pipeline();
         pipeline.addLast("Http2Handler", connectionHandler);
         configureEndOfPipeline(pipeline);
+        if (config.debug()) {
+            pipeline.addLast("Logger", new UserEventLogger());
+        }
     }
 
     /**
@@ -122,26 +206,42 @@ public class Http2ClientInitializer extends ChannelInitializer<SocketChannel> {
         ch.pipeline().addLast("Http2SourceCodec", sourceCodec);
         ch.pipeline().addLast("Http2UpgradeHandler", upgradeHandler);
         ch.pipeline().addLast("Http2UpgradeRequestHandler", new UpgradeRequestHandler());
-        ch.pipeline().addLast("Logger", new UserEventLogger());
+        if (config.debug()) {
+            ch.pipeline().addLast("Logger", new UserEventLogger());
+        }
     }
 
     /**
-     * A handler that triggers the cleartext upgrade to HTTP/2 by sending an initial HTTP request.
+     * A handler that triggers the cleartext upgrade to HTTP/2 by sending an initial HTTP request,
+     * and stops waiting for the server SETTINGS if the server declines the upgrade.
      */
     private final class UpgradeRequestHandler extends ChannelHandlerAdapter {
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
             DefaultFullHttpRequest upgradeRequest =
                     new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+            // Mandatory in HTTP/1.1, servers may reject the upgrade request without it
+            upgradeRequest.headers().set(HttpHeaderNames.HOST, config.host() + ':' + config.port());
             ctx.writeAndFlush(upgradeRequest);
 
             super.channelActive(ctx);
 
-            // Done with this handler, remove it from the pipeline.
-            ctx.pipeline().remove(this);
-
             Http2ClientInitializer.this.configureEndOfPipeline(ctx.pipeline());
         }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == HttpClientUpgradeHandler.UpgradeEvent.UPGRADE_REJECTED) {
+                settingsHandler.fail(new IllegalStateException("Server at " + config.host() + ':' + config.port()
+                    + " rejected the upgrade to h2c"));
+            }
+            if (evt == HttpClientUpgradeHandler.UpgradeEvent.UPGRADE_SUCCESSFUL
+                    || evt == HttpClientUpgradeHandler.UpgradeEvent.UPGRADE_REJECTED) {
+                // Done with this handler, remove it from the pipeline.
+                ctx.pipeline().remove(this);
+            }
+            super.userEventTriggered(ctx, evt);
+        }
     }
 
     /**
@@ -150,43 +250,65 @@ public class Http2ClientInitializer extends ChannelInitializer<SocketChannel> {
     private static class UserEventLogger extends ChannelHandlerAdapter {
         @Override
         public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-            System.out.println("User Event Triggered: " + evt);
+            log.info("User Event Triggered: " + evt);
             super.userEventTriggered(ctx, evt);
         }
     }
 
     private Http2FrameReader frameReader() {
-        return new Http2InboundFrameLogger(new DefaultHttp2FrameReader(), logger);
+        Http2FrameReader reader = new DefaultHttp2FrameReader(hpack.meter(new DefaultHttp2HeadersDecoder()));
+        return config.debug() ? new Http2InboundFrameLogger(reader, logger) : reader;
     }
 
-    private Http2FrameWriter frameWriter() {
-        // Set initial SETTINGS
-        Http2Settings settings = new Http2Settings();
-        settings.pushEnabled(false);
-        settings.maxConcurrentStreams(100);
-
-        return new Http2OutboundFrameLogger(new CustomHttp2FrameWriter(settings), logger);
+    private Http2FrameWriter frameWriter() throws Http2Exception {
+        // Header values that change with every request are sent as never-indexed literals
+        Http2FrameWriter writer = new HeaderSizeFrameWriter(hpack.meter(new DefaultHttp2HeadersEncoder(
+            Http2CodecUtil.DEFAULT_HEADER_TABLE_SIZE, config.neverIndexedHeaders()), config.encoderTableSize()));
+        return config.debug() ? new Http2OutboundFrameLogger(writer, logger) : writer;
     }
 
     /**
-     *  Custom HTTP/2 frame writer.
+     * Hands the size of each request header block, before and after HPACK, to the response of its stream,
+     * and sends the priority the response asks for in the HEADERS frame.
+     *
+     * The priority is applied here rather than by the connection handler, which does not take it
+     * from the request, so the server's view of the tree is all that changes.
      */
-    private class CustomHttp2FrameWriter extends DefaultHttp2FrameWriter {
-        private final Http2Settings settings;
+    private final class HeaderSizeFrameWriter extends DefaultHttp2FrameWriter {
+        HeaderSizeFrameWriter(Http2HeadersEncoder headersEncoder) {
+            super(headersEncoder);
+        }
 
-        public CustomHttp2FrameWriter(Http2Settings settings) {
-            this.settings = settings;
+        @Override
+        public ChannelFuture writeHeaders(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                int padding, boolean endStream, ChannelPromise promise) {
+            final Http2Response response = responseHandler.response(streamId);
+            final ChannelFuture future = response != null && response.hasPriority()
+                ? super.writeHeaders(ctx, streamId, headers, response.streamDependency(), response.weight(),
+                    response.isExclusive(), padding, endStream, promise)
+                : super.writeHeaders(ctx, streamId, headers, padding, endStream, promise);
+            recordHeaders(response);
+            return future;
         }
 
-        /**
-         *  write customized SETTINGS
-         */
         @Override
-        public ChannelFuture writeSettings(ChannelHandlerContext ctx, Http2Settings settings, ChannelPromise promise) {
-            if(this.settings != null) {
-                return super.writeSettings(ctx, this.settings, promise);
-            } else {
-                return super.writeSettings(ctx, settings, promise);
+        public ChannelFuture writeHeaders(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                int streamDependency, short weight, boolean exclusive, int padding, boolean endStream,
+                ChannelPromise promise) {
+            final Http2Response response = responseHandler.response(streamId);
+            final ChannelFuture future = response != null && response.hasPriority()
+                ? super.writeHeaders(ctx, streamId, headers, response.streamDependency(), response.weight(),
+                    response.isExclusive(), padding, endStream, promise)
+                : super.writeHeaders(ctx, streamId, headers, streamDependency, weight, exclusive, padding,
+                    endStream, promise);
+            recordHeaders(response);
+            return future;
+        }
+
+        private void recordHeaders(Http2Response response) {
+            // The block has just been encoded on this thread
+            if (response != null) {
+                response.requestHeaders(hpack.encoder().lastHeaderBytes(), hpack.encoder().lastWireBytes());
             }
         }
     }
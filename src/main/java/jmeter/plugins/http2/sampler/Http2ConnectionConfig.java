@@ -0,0 +1,392 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.Collections;
+import java.util.Set;
+
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.ssl.SslContext;
+
+/**
+ * Immutable description of how a connection to a server is established.
+ */
+public final class Http2ConnectionConfig {
+
+    /** Only compared with, never handed out as it is mutable */
+    private static final Http2Settings DEFAULT_SETTINGS = defaultSettings();
+
+    private final String host;
+    private final int port;
+    private final SslContext sslContext;
+    private final boolean priorKnowledge;
+    private final boolean forceFullHandshake;
+    private final boolean debug;
+    private final Http2Settings settings;
+    private final int connectionWindowSize;
+    private final boolean autoTuneWindow;
+    private final boolean tcpNoDelay;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final boolean tcpQuickAck;
+    private final int encoderTableSize;
+    private final Set<String> neverIndexedHeaders;
+    private final boolean hpackStats;
+    private final long pushSizeLimit;
+    private final long pingInterval;
+    private final long pingTimeout;
+    private final String key;
+
+    private Http2ConnectionConfig(Builder builder) {
+        this.host = builder.host;
+        this.port = builder.port;
+        this.sslContext = builder.sslContext;
+        this.priorKnowledge = builder.priorKnowledge;
+        this.forceFullHandshake = builder.forceFullHandshake;
+        this.debug = builder.debug;
+        this.settings = builder.settings != null ? builder.settings : defaultSettings();
+        this.connectionWindowSize = builder.connectionWindowSize;
+        this.autoTuneWindow = builder.autoTuneWindow;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.tcpQuickAck = builder.tcpQuickAck;
+        this.encoderTableSize = builder.encoderTableSize;
+        this.neverIndexedHeaders = builder.neverIndexedHeaders;
+        this.hpackStats = builder.hpackStats;
+        this.pushSizeLimit = builder.pushSizeLimit;
+        this.pingInterval = builder.pingInterval;
+        this.pingTimeout = builder.pingTimeout;
+        this.key = buildKey();
+    }
+
+    /**
+     * @return The SETTINGS sent when nothing else is configured
+     */
+    public static Http2Settings defaultSettings() {
+        Http2Settings settings = new Http2Settings();
+        settings.pushEnabled(false);
+        settings.maxConcurrentStreams(100);
+        return settings;
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    /**
+     * @return The TLS context, {@code null} for cleartext connections
+     */
+    public SslContext sslContext() {
+        return sslContext;
+    }
+
+    /**
+     * @return {@code true} if a cleartext connection starts with the HTTP/2 preface (h2c with prior knowledge),
+     *         {@code false} if it is upgraded from HTTP/1.1
+     */
+    public boolean priorKnowledge() {
+        return priorKnowledge;
+    }
+
+    /**
+     * @return {@code true} if TLS sessions must not be resumed, so every new connection pays a full handshake
+     */
+    public boolean forceFullHandshake() {
+        return forceFullHandshake;
+    }
+
+    /**
+     * @return {@code true} if frames, user events and response bodies of the connection are logged
+     */
+    public boolean debug() {
+        return debug;
+    }
+
+    /**
+     * @return The SETTINGS the client sends in its connection preface, must not be modified
+     */
+    public Http2Settings settings() {
+        return settings;
+    }
+
+    /**
+     * @return The connection-level receive window announced after the preface, 0 for the protocol default
+     */
+    public int connectionWindowSize() {
+        return connectionWindowSize;
+    }
+
+    /**
+     * @return {@code true} if receive windows follow the measured bandwidth-delay product
+     */
+    public boolean autoTuneWindow() {
+        return autoTuneWindow;
+    }
+
+    public boolean tcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return SO_RCVBUF in bytes, 0 or less for the operating system default
+     */
+    public int receiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return SO_SNDBUF in bytes, 0 or less for the operating system default
+     */
+    public int sendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @return {@code true} to set TCP_QUICKACK where the transport supports it
+     */
+    public boolean tcpQuickAck() {
+        return tcpQuickAck;
+    }
+
+    /**
+     * @return Upper bound of the HPACK encoder's dynamic table, negative for the size the server allows
+     */
+    public int encoderTableSize() {
+        return encoderTableSize;
+    }
+
+    /**
+     * @return Lower-cased names of the headers HPACK must never add to the dynamic table
+     */
+    public Set<String> neverIndexedHeaders() {
+        return neverIndexedHeaders;
+    }
+
+    /**
+     * @return {@code true} if every header block is scanned for the HPACK counters
+     */
+    public boolean hpackStats() {
+        return hpackStats;
+    }
+
+    /**
+     * @return {@code true} if the SETTINGS allow the server to push responses
+     */
+    public boolean pushEnabled() {
+        return Boolean.TRUE.equals(settings.pushEnabled());
+    }
+
+    /**
+     * @return Size in bytes above which a pushed response is cancelled, negative to accept any size
+     */
+    public long pushSizeLimit() {
+        return pushSizeLimit;
+    }
+
+    /**
+     * @return Milliseconds between keep-alive PINGs, 0 or less for none
+     */
+    public long pingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * @return Milliseconds a PING may stay unanswered before the connection is closed, 0 or less to wait forever
+     */
+    public long pingTimeout() {
+        return pingTimeout;
+    }
+
+    /**
+     * @return The key of the connection pool connections for this configuration belong to
+     */
+    public String key() {
+        return key;
+    }
+
+    private String buildKey() {
+        StringBuilder builder = new StringBuilder(host).append(':').append(port);
+        if (sslContext == null) {
+            builder.append(priorKnowledge ? "#h2c" : "#h2c-upgrade");
+        } else {
+            // Sessions are only resumed within the cache of one context
+            builder.append("#tls=").append(SslContextCache.key(sslContext));
+            if (forceFullHandshake) {
+                // Must never be handed a connection that resumed its session
+                builder.append("#full-handshake");
+            }
+        }
+        // Connections negotiated with other settings, or carrying extra logging handlers, are not interchangeable
+        if (!settings.equals(DEFAULT_SETTINGS) || connectionWindowSize > 0 || autoTuneWindow) {
+            builder.append("#settings=")
+                .append(settings.headerTableSize()).append(',')
+                .append(settings.maxConcurrentStreams()).append(',')
+                .append(settings.initialWindowSize()).append(',')
+                .append(settings.maxFrameSize()).append(',')
+                .append(settings.maxHeaderListSize()).append(',')
+                .append(connectionWindowSize).append(',')
+                .append(autoTuneWindow);
+        }
+        if (!tcpNoDelay || receiveBufferSize > 0 || sendBufferSize > 0 || tcpQuickAck) {
+            builder.append("#socket=")
+                .append(tcpNoDelay).append(',')
+                .append(receiveBufferSize).append(',')
+                .append(sendBufferSize).append(',')
+                .append(tcpQuickAck);
+        }
+        if (encoderTableSize >= 0 || !neverIndexedHeaders.isEmpty()) {
+            builder.append("#hpack=").append(encoderTableSize).append(',').append(neverIndexedHeaders);
+        }
+        if (hpackStats) {
+            // Counters of a connection only add up if they were kept since it was opened
+            builder.append("#hpack-stats");
+        }
+        if (pushEnabled()) {
+            builder.append("#push=").append(pushSizeLimit);
+        }
+        if (pingInterval > 0 || pingTimeout != Http2Pinger.DEFAULT_TIMEOUT_MS) {
+            builder.append("#ping=").append(pingInterval).append(',').append(pingTimeout);
+        }
+        if (debug) {
+            builder.append("#debug");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Builder for {@link Http2ConnectionConfig}
+     */
+    public static class Builder {
+        private final String host;
+        private final int port;
+        private SslContext sslContext;
+        private boolean priorKnowledge;
+        private boolean forceFullHandshake;
+        private boolean debug;
+        private Http2Settings settings;
+        private int connectionWindowSize;
+        private boolean autoTuneWindow;
+        private boolean tcpNoDelay = true;
+        private int receiveBufferSize;
+        private int sendBufferSize;
+        private boolean tcpQuickAck;
+        private int encoderTableSize = -1;
+        private Set<String> neverIndexedHeaders = Collections.emptySet();
+        private boolean hpackStats;
+        private long pushSizeLimit = -1;
+        private long pingInterval;
+        private long pingTimeout = Http2Pinger.DEFAULT_TIMEOUT_MS;
+
+        public Builder(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public Builder sslContext(SslContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        public Builder priorKnowledge(boolean priorKnowledge) {
+            this.priorKnowledge = priorKnowledge;
+            return this;
+        }
+
+        public Builder forceFullHandshake(boolean forceFullHandshake) {
+            this.forceFullHandshake = forceFullHandshake;
+            return this;
+        }
+
+        public Builder debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        public Builder settings(Http2Settings settings) {
+            this.settings = settings;
+            return this;
+        }
+
+        public Builder connectionWindowSize(int connectionWindowSize) {
+            this.connectionWindowSize = connectionWindowSize;
+            return this;
+        }
+
+        public Builder autoTuneWindow(boolean autoTuneWindow) {
+            this.autoTuneWindow = autoTuneWindow;
+            return this;
+        }
+
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        public Builder sendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        public Builder tcpQuickAck(boolean tcpQuickAck) {
+            this.tcpQuickAck = tcpQuickAck;
+            return this;
+        }
+
+        public Builder encoderTableSize(int encoderTableSize) {
+            this.encoderTableSize = encoderTableSize;
+            return this;
+        }
+
+        public Builder neverIndexedHeaders(Set<String> neverIndexedHeaders) {
+            this.neverIndexedHeaders = neverIndexedHeaders;
+            return this;
+        }
+
+        public Builder hpackStats(boolean hpackStats) {
+            this.hpackStats = hpackStats;
+            return this;
+        }
+
+        public Builder pushSizeLimit(long pushSizeLimit) {
+            this.pushSizeLimit = pushSizeLimit;
+            return this;
+        }
+
+        public Builder pingInterval(long pingInterval) {
+            this.pingInterval = pingInterval;
+            return this;
+        }
+
+        public Builder pingTimeout(long pingTimeout) {
+            this.pingTimeout = pingTimeout;
+            return this;
+        }
+
+        public Http2ConnectionConfig build() {
+            return new Http2ConnectionConfig(this);
+        }
+    }
+}
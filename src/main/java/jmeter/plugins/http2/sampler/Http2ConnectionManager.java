@@ -0,0 +1,375 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Keeps established HTTP/2 connections open across samples, keyed by {@code host:port}.
+ *
+ * In per-thread mode every JMeter thread owns its connections, mimicking one browser per
+ * virtual user; a thread opens another connection only when its connections to the destination
+ * are all at the server's SETTINGS_MAX_CONCURRENT_STREAMS. In shared mode all threads multiplex their streams onto a pool of connections,
+ * opening another one only when every pooled connection has reached the server's
+ * SETTINGS_MAX_CONCURRENT_STREAMS.
+ */
+public final class Http2ConnectionManager {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 5;
+
+    /** Only touched by the owning thread, {@link #release(Http2ClientConnection)} may run on an event loop */
+    private static final ThreadLocal<Map<String, List<Http2ClientConnection>>> threadConnections =
+        new ThreadLocal<Map<String, List<Http2ClientConnection>>>() {
+            @Override
+            protected Map<String, List<Http2ClientConnection>> initialValue() {
+                return new HashMap<String, List<Http2ClientConnection>>();
+            }
+        };
+
+    private static final ConcurrentMap<String, List<Http2ClientConnection>> sharedConnections =
+        new ConcurrentHashMap<String, List<Http2ClientConnection>>();
+
+    /** Connections opened by a warm-up for per-thread use, waiting for a thread to adopt them */
+    private static final ConcurrentMap<String, Queue<Http2ClientConnection>> warmConnections =
+        new ConcurrentHashMap<String, Queue<Http2ClientConnection>>();
+
+    /** Destinations warmed up during the current test */
+    private static final Set<String> warmedUp = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Held while a shared connection is opened or a destination is warmed up, per {@link Http2ConnectionConfig#key()} */
+    private static final ConcurrentMap<String, Lock> openLocks = new ConcurrentHashMap<String, Lock>();
+
+    /** Every open connection of either mode, so they can be closed at the end of the test */
+    private static final Set<Http2ClientConnection> allConnections =
+        Collections.newSetFromMap(new ConcurrentHashMap<Http2ClientConnection, Boolean>());
+
+    private Http2ConnectionManager() {
+    }
+
+    /**
+     * @return Every connection opened and not yet discarded, of either mode
+     */
+    static Collection<Http2ClientConnection> openConnections() {
+        return Collections.unmodifiableSet(allConnections);
+    }
+
+    /**
+     * Get a connection to the configured server with a stream slot reserved for the caller
+     *
+     * @param config Describes the server and how to connect to it if a new connection is needed
+     * @param shared {@code true} to multiplex onto the pool shared by all threads
+     * @return A connection on which {@link Http2ClientConnection#reserveStream()} succeeded
+     * @throws Exception if a new connection could not be established, or accepts no stream
+     * @see #release(Http2ClientConnection)
+     */
+    public static Http2ClientConnection acquire(Http2ConnectionConfig config, boolean shared) throws Exception {
+        return shared ? acquireShared(config) : acquirePerThread(config);
+    }
+
+    /**
+     * Run {@code warmUp} once per destination and test
+     *
+     * Threads arriving while it runs wait for it to finish, and so do threads opening a shared
+     * connection to the destination, so no sample overlaps the warm-up. The destination only
+     * counts as warmed up once {@code warmUp} has returned. A failed warm-up is not repeated.
+     *
+     * @return What {@code warmUp} returned, 0 if the destination was already warmed up
+     */
+    public static int warmUpOnce(String key, Callable<Integer> warmUp) throws Exception {
+        if (warmedUp.contains(key)) {
+            return 0;
+        }
+        final Lock lock = openLock(key);
+        lock.lock();
+        try {
+            if (warmedUp.contains(key)) {
+                return 0;
+            }
+            try {
+                return warmUp.call();
+            } finally {
+                warmedUp.add(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Warms up a connection before samples may use it
+     */
+    public interface ConnectionWarmer {
+
+        /**
+         * @param connection A connection no sample can acquire yet
+         * @throws Exception if the connection could not be warmed up, it is closed then
+         */
+        void warm(Http2ClientConnection connection) throws Exception;
+    }
+
+    /**
+     * Open connections ahead of the samples
+     *
+     * Every connection is published once {@code warmer} is done with it. Shared connections join
+     * the pool then. Per-thread connections wait until a thread needs a connection to their
+     * destination, so the first sample of up to {@code count} threads finds one established.
+     *
+     * @param config Describes the server and how to connect to it
+     * @param shared {@code true} to open connections for the pool shared by all threads
+     * @param count Number of connections to open
+     * @param warmer Warms up each connection before it is published
+     * @return The number of connections opened
+     * @throws Exception if a connection could not be established or warmed up
+     */
+    public static int warmUp(Http2ConnectionConfig config, boolean shared, int count, ConnectionWarmer warmer)
+            throws Exception {
+        final String key = config.key();
+        final Collection<Http2ClientConnection> target = shared ? pool(key) : warmQueue(key);
+        for (int i = 0; i < count; i++) {
+            final Http2ClientConnection connection = open(config);
+            try {
+                warmer.warm(connection);
+            } catch (Exception exception) {
+                discard(connection);
+                throw exception;
+            }
+            target.add(connection);
+        }
+        return count;
+    }
+
+    /**
+     * Give back the stream slot taken by {@link #acquire(Http2ConnectionConfig, boolean)}
+     *
+     * A connection no longer usable is closed once its last stream is released.
+     */
+    public static void release(Http2ClientConnection connection) {
+        connection.releaseStream();
+        if (!connection.isUsable() && connection.activeStreams() == 0) {
+            discard(connection);
+        }
+    }
+
+    /**
+     * Close the connections owned by the calling thread
+     */
+    public static void closeThreadConnections() {
+        Map<String, List<Http2ClientConnection>> connections = threadConnections.get();
+        for (List<Http2ClientConnection> perKey : connections.values()) {
+            for (Http2ClientConnection connection : perKey) {
+                discard(connection);
+            }
+        }
+        connections.clear();
+    }
+
+    /**
+     * Close every connection opened by the plugin
+     */
+    public static void closeAll() {
+        for (Http2ClientConnection connection : allConnections) {
+            connection.close();
+        }
+        allConnections.clear();
+        sharedConnections.clear();
+        warmConnections.clear();
+        warmedUp.clear();
+        openLocks.clear();
+    }
+
+    private static Http2ClientConnection acquirePerThread(Http2ConnectionConfig config) throws Exception {
+        final String key = config.key();
+        final Map<String, List<Http2ClientConnection>> threadMap = threadConnections.get();
+        List<Http2ClientConnection> connections = threadMap.get(key);
+        if (connections == null) {
+            connections = new ArrayList<Http2ClientConnection>(1);
+            threadMap.put(key, connections);
+        }
+        final Iterator<Http2ClientConnection> iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            final Http2ClientConnection connection = iterator.next();
+            if (connection.reserveStream()) {
+                return connection;
+            }
+            if (!connection.isUsable()) {
+                // One still carrying streams is closed by release() after its last one
+                iterator.remove();
+                if (connection.activeStreams() == 0) {
+                    discard(connection);
+                }
+            }
+        }
+
+        // Every connection of the thread is full, the full ones stay for the samples to come
+        if (!connections.isEmpty()) {
+            Http2Metrics.get().streamRefused();
+        }
+        Http2ClientConnection connection = adoptWarm(key);
+        if (connection == null) {
+            connection = reserveFirst(open(config));
+        }
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * @return A connection opened by a warm-up with a stream slot reserved, {@code null} if there is none
+     */
+    private static Http2ClientConnection adoptWarm(String key) {
+        final Queue<Http2ClientConnection> queue = warmConnections.get(key);
+        if (queue == null) {
+            return null;
+        }
+        Http2ClientConnection connection;
+        while ((connection = queue.poll()) != null) {
+            if (connection.reserveStream()) {
+                return connection;
+            }
+            discard(connection);
+        }
+        return null;
+    }
+
+    /**
+     * Reserve the first stream slot of a connection just opened
+     *
+     * @return {@code connection}
+     * @throws IllegalStateException if the connection accepts no stream, because the server allows
+     *         none or the connection already closed, in which case it is discarded
+     */
+    private static Http2ClientConnection reserveFirst(Http2ClientConnection connection) {
+        if (!connection.reserveStream()) {
+            discard(connection);
+            throw new IllegalStateException("New connection to " + connection.key() + " accepts no stream");
+        }
+        return connection;
+    }
+
+    private static Queue<Http2ClientConnection> warmQueue(String key) {
+        Queue<Http2ClientConnection> queue = warmConnections.get(key);
+        if (queue == null) {
+            Queue<Http2ClientConnection> created = new ConcurrentLinkedQueue<Http2ClientConnection>();
+            queue = warmConnections.putIfAbsent(key, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    private static List<Http2ClientConnection> pool(String key) {
+        List<Http2ClientConnection> pool = sharedConnections.get(key);
+        if (pool == null) {
+            List<Http2ClientConnection> created = new CopyOnWriteArrayList<Http2ClientConnection>();
+            pool = sharedConnections.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    private static Http2ClientConnection acquireShared(Http2ConnectionConfig config) throws Exception {
+        final String key = config.key();
+        final List<Http2ClientConnection> pool = pool(key);
+
+        Http2ClientConnection connection = reserveFromPool(pool);
+        if (connection != null) {
+            return connection;
+        }
+
+        // Only one thread per destination opens a new connection, the others will multiplex onto it.
+        // A lock rather than a monitor, so virtual threads waiting for the connection are not pinned.
+        final Lock lock = openLock(key);
+        lock.lock();
+        try {
+            connection = reserveFromPool(pool);
+            if (connection != null) {
+                return connection;
+            }
+            if (!pool.isEmpty()) {
+                Http2Metrics.get().streamRefused();
+            }
+            connection = reserveFirst(open(config));
+            pool.add(connection);
+            return connection;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Lock openLock(String key) {
+        Lock lock = openLocks.get(key);
+        if (lock == null) {
+            final Lock created = new ReentrantLock();
+            lock = openLocks.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    private static Http2ClientConnection reserveFromPool(List<Http2ClientConnection> pool) {
+        for (Http2ClientConnection connection : pool) {
+            if (connection.reserveStream()) {
+                return connection;
+            }
+            if (!connection.isUsable() && connection.activeStreams() == 0) {
+                discard(connection);
+            }
+        }
+        return null;
+    }
+
+    private static Http2ClientConnection open(Http2ConnectionConfig config) throws Exception {
+        log.debug("Opening HTTP/2 connection to " + config.key());
+        Http2ClientConnection connection =
+            Http2ClientConnection.connect(config, CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        allConnections.add(connection);
+        return connection;
+    }
+
+    private static void discard(Http2ClientConnection connection) {
+        List<Http2ClientConnection> pool = sharedConnections.get(connection.key());
+        if (pool != null) {
+            pool.remove(connection);
+        }
+        allConnections.remove(connection);
+        connection.close();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * Header sizes of a request before and after HPACK, with the compression counters of its connection.
+ *
+ * Exported as JMeter variables like {@link Http2Timings}. The connection counters are totals
+ * since the connection was opened, so successive samples show how connection reuse pays off.
+ * Only the encoded sizes are known unless the connection scans its header blocks, see
+ * {@link HpackCounters#scanning()}.
+ */
+public final class Http2HeaderStats {
+
+    public static final String REQUEST_HEADER_BYTES_VARIABLE = "http2.request_header_bytes";
+    public static final String REQUEST_HEADER_WIRE_BYTES_VARIABLE = "http2.request_header_wire_bytes";
+    public static final String RESPONSE_HEADER_BYTES_VARIABLE = "http2.response_header_bytes";
+    public static final String RESPONSE_HEADER_WIRE_BYTES_VARIABLE = "http2.response_header_wire_bytes";
+    public static final String ENCODER_HITS_VARIABLE = "http2.hpack_encoder_hits";
+    public static final String ENCODER_EVICTIONS_VARIABLE = "http2.hpack_encoder_evictions";
+    public static final String DECODER_HITS_VARIABLE = "http2.hpack_decoder_hits";
+    public static final String DECODER_EVICTIONS_VARIABLE = "http2.hpack_decoder_evictions";
+
+    private int requestHeaderBytes;
+    private int requestHeaderWireBytes;
+    private int responseHeaderBytes;
+    private int responseHeaderWireBytes;
+    private long encoderHits;
+    private long encoderEvictions;
+    private long decoderHits;
+    private long decoderEvictions;
+    private boolean scanned;
+
+    Http2HeaderStats() {
+    }
+
+    /**
+     * @param response A completed response
+     */
+    void stream(Http2Response response) {
+        requestHeaderBytes = response.requestHeaderBytes();
+        requestHeaderWireBytes = response.requestHeaderWireBytes();
+        responseHeaderBytes = response.responseHeaderBytes();
+        responseHeaderWireBytes = response.responseHeaderWireBytes();
+        final HpackCounters hpack = response.hpack();
+        scanned = hpack != null && hpack.scanning();
+        if (scanned) {
+            encoderHits = hpack.encoder().hits();
+            encoderEvictions = hpack.encoder().evictions();
+            decoderHits = hpack.decoder().hits();
+            decoderEvictions = hpack.decoder().evictions();
+        }
+    }
+
+    public int requestHeaderBytes() {
+        return requestHeaderBytes;
+    }
+
+    public int requestHeaderWireBytes() {
+        return requestHeaderWireBytes;
+    }
+
+    public int responseHeaderBytes() {
+        return responseHeaderBytes;
+    }
+
+    public int responseHeaderWireBytes() {
+        return responseHeaderWireBytes;
+    }
+
+    /**
+     * Publish the sizes and counters as variables of the current JMeter thread
+     */
+    public void export(JMeterVariables variables) {
+        if (variables == null) {
+            return;
+        }
+        variables.put(REQUEST_HEADER_WIRE_BYTES_VARIABLE, String.valueOf(requestHeaderWireBytes));
+        variables.put(RESPONSE_HEADER_WIRE_BYTES_VARIABLE, String.valueOf(responseHeaderWireBytes));
+        if (!scanned) {
+            return;
+        }
+        variables.put(REQUEST_HEADER_BYTES_VARIABLE, String.valueOf(requestHeaderBytes));
+        variables.put(RESPONSE_HEADER_BYTES_VARIABLE, String.valueOf(responseHeaderBytes));
+        variables.put(ENCODER_HITS_VARIABLE, String.valueOf(encoderHits));
+        variables.put(ENCODER_EVICTIONS_VARIABLE, String.valueOf(encoderEvictions));
+        variables.put(DECODER_HITS_VARIABLE, String.valueOf(decoderHits));
+        variables.put(DECODER_EVICTIONS_VARIABLE, String.valueOf(decoderEvictions));
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+/**
+ * Health of the load generator itself: connections, streams, event loops and buffers.
+ *
+ * A result is only as good as the client that produced it. When the event loops fall behind, or
+ * streams queue up for a slot, the measured times include the client's own backlog. These metrics
+ * tell whether that happened. The counters are totals since the event loop group was created;
+ * the gauges are read when asked for. They are published over JMX while the group exists, and
+ * sampled by {@link Http2MetricsSampler} into the results.
+ */
+public final class Http2Metrics implements Http2MetricsMBean {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String OBJECT_NAME = "jmeter.plugins.http2.sampler:type=Http2Metrics";
+
+    /** How long a probe task may wait for an event loop before the loop counts as stalled */
+    static final long PROBE_TIMEOUT_MS = 1000;
+
+    private static final Http2Metrics INSTANCE = new Http2Metrics();
+
+    private final AtomicLong refusedStreams = new AtomicLong();
+    private final AtomicLong goAwaysReceived = new AtomicLong();
+    private final AtomicLong resetsReceived = new AtomicLong();
+    private final AtomicLong resetsSent = new AtomicLong();
+    private final AtomicLong pingTimeouts = new AtomicLong();
+
+    private Http2Metrics() {
+    }
+
+    public static Http2Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Zero the counters and publish the metrics over JMX
+     */
+    static void register() {
+        INSTANCE.refusedStreams.set(0);
+        INSTANCE.goAwaysReceived.set(0);
+        INSTANCE.resetsReceived.set(0);
+        INSTANCE.resetsSent.set(0);
+        INSTANCE.pingTimeouts.set(0);
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (Exception exception) {
+            log.warn("Could not register " + OBJECT_NAME, exception);
+        }
+    }
+
+    static void unregister() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception exception) {
+            log.warn("Could not unregister " + OBJECT_NAME, exception);
+        }
+    }
+
+    /**
+     * A stream had to wait for a slot, or open another connection, because the connections at hand
+     * had reached the server's SETTINGS_MAX_CONCURRENT_STREAMS; counted once per stream
+     */
+    void streamRefused() {
+        refusedStreams.incrementAndGet();
+    }
+
+    void goAwayReceived() {
+        goAwaysReceived.incrementAndGet();
+    }
+
+    void resetReceived() {
+        resetsReceived.incrementAndGet();
+    }
+
+    void resetSent() {
+        resetsSent.incrementAndGet();
+    }
+
+    /**
+     * A connection was closed for leaving a PING unanswered
+     */
+    void pingTimedOut() {
+        pingTimeouts.incrementAndGet();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return Http2ConnectionManager.openConnections().size();
+    }
+
+    @Override
+    public int getActiveStreams() {
+        int streams = 0;
+        for (Http2ClientConnection connection : Http2ConnectionManager.openConnections()) {
+            streams += connection.activeStreams();
+        }
+        return streams;
+    }
+
+    @Override
+    public int getMaxActiveStreamsPerConnection() {
+        int max = 0;
+        for (Http2ClientConnection connection : Http2ConnectionManager.openConnections()) {
+            max = Math.max(max, connection.activeStreams());
+        }
+        return max;
+    }
+
+    @Override
+    public int getPendingResponses() {
+        int pending = 0;
+        for (Http2ClientConnection connection : Http2ConnectionManager.openConnections()) {
+            pending += connection.responseHandler().pending();
+        }
+        return pending;
+    }
+
+    @Override
+    public int getEventLoopQueueDepth() {
+        final EventLoopGroup group = EventLoopGroupManager.current();
+        if (group == null) {
+            return 0;
+        }
+        int depth = 0;
+        for (EventExecutor loop : group.children()) {
+            if (loop instanceof SingleThreadEventExecutor) {
+                depth += ((SingleThreadEventExecutor) loop).pendingTasks();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Submit an empty task to every event loop and wait for all of them to run it
+     *
+     * @return The longest time a task waited for its loop, {@value #PROBE_TIMEOUT_MS} ms for a loop that did
+     *         not get to it in time, 0 without event loops
+     */
+    @Override
+    public long getEventLoopTaskLatencyMicros() {
+        final EventLoopGroup group = EventLoopGroupManager.current();
+        if (group == null) {
+            return 0;
+        }
+        final List<Future<Long>> probes = new ArrayList<Future<Long>>();
+        for (EventExecutor loop : group.children()) {
+            final long submitted = System.nanoTime();
+            probes.add(loop.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return System.nanoTime() - submitted;
+                }
+            }));
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MS);
+        long max = 0;
+        for (Future<Long> probe : probes) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining > 0 && Http2Await.awaitUninterruptibly(probe, remaining, TimeUnit.NANOSECONDS) && probe.isSuccess()) {
+                max = Math.max(max, probe.getNow());
+            } else {
+                max = TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MS);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMicros(max);
+    }
+
+    /**
+     * @return Bytes of direct memory in use. Netty's pooled allocator takes its arenas from there, so this
+     *         covers the pooled frame and body buffers.
+     */
+    @Override
+    public long getDirectBufferBytes() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The longest of the last PING round-trip times of the open connections, in microseconds,
+     *         -1 if no connection has answered a PING
+     */
+    @Override
+    public long getMaxPingRttMicros() {
+        long max = -1;
+        for (Http2ClientConnection connection : Http2ConnectionManager.openConnections()) {
+            max = Math.max(max, connection.pingRttMicros());
+        }
+        return max;
+    }
+
+    @Override
+    public long getRefusedStreams() {
+        return refusedStreams.get();
+    }
+
+    @Override
+    public long getGoAwaysReceived() {
+        return goAwaysReceived.get();
+    }
+
+    @Override
+    public long getResetsReceived() {
+        return resetsReceived.get();
+    }
+
+    @Override
+    public long getResetsSent() {
+        return resetsSent.get();
+    }
+
+    @Override
+    public long getPingTimeouts() {
+        return pingTimeouts.get();
+    }
+
+    /**
+     * @return All metrics, read now
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The metrics at one point in time, exported as JMeter variables like {@link Http2Timings}
+     */
+    public static final class Snapshot {
+
+        public static final String OPEN_CONNECTIONS_VARIABLE = "http2.metrics.open_connections";
+        public static final String ACTIVE_STREAMS_VARIABLE = "http2.metrics.active_streams";
+        public static final String MAX_STREAMS_PER_CONNECTION_VARIABLE = "http2.metrics.max_streams_per_connection";
+        public static final String PENDING_RESPONSES_VARIABLE = "http2.metrics.pending_responses";
+        public static final String QUEUE_DEPTH_VARIABLE = "http2.metrics.event_loop_queue_depth";
+        public static final String TASK_LATENCY_VARIABLE = "http2.metrics.event_loop_task_latency_us";
+        public static final String DIRECT_BUFFER_BYTES_VARIABLE = "http2.metrics.direct_buffer_bytes";
+        public static final String MAX_PING_RTT_VARIABLE = "http2.metrics.max_ping_rtt_us";
+        public static final String REFUSED_STREAMS_VARIABLE = "http2.metrics.refused_streams";
+        public static final String GOAWAYS_RECEIVED_VARIABLE = "http2.metrics.goaways_received";
+        public static final String RESETS_RECEIVED_VARIABLE = "http2.metrics.resets_received";
+        public static final String RESETS_SENT_VARIABLE = "http2.metrics.resets_sent";
+        public static final String PING_TIMEOUTS_VARIABLE = "http2.metrics.ping_timeouts";
+
+        private final int openConnections;
+        private final int activeStreams;
+        private final int maxStreamsPerConnection;
+        private final int pendingResponses;
+        private final int queueDepth;
+        private final long taskLatencyMicros;
+        private final long directBufferBytes;
+        private final long maxPingRttMicros;
+        private final long refusedStreams;
+        private final long goAwaysReceived;
+        private final long resetsReceived;
+        private final long resetsSent;
+        private final long pingTimeouts;
+
+        private Snapshot(Http2Metrics metrics) {
+            // Queue depth first, the latency probes add a task to every queue
+            queueDepth = metrics.getEventLoopQueueDepth();
+            taskLatencyMicros = metrics.getEventLoopTaskLatencyMicros();
+            openConnections = metrics.getOpenConnections();
+            activeStreams = metrics.getActiveStreams();
+            maxStreamsPerConnection = metrics.getMaxActiveStreamsPerConnection();
+            pendingResponses = metrics.getPendingResponses();
+            directBufferBytes = metrics.getDirectBufferBytes();
+            maxPingRttMicros = metrics.getMaxPingRttMicros();
+            refusedStreams = metrics.getRefusedStreams();
+            goAwaysReceived = metrics.getGoAwaysReceived();
+            resetsReceived = metrics.getResetsReceived();
+            resetsSent = metrics.getResetsSent();
+            pingTimeouts = metrics.getPingTimeouts();
+        }
+
+        public long taskLatencyMicros() {
+            return taskLatencyMicros;
+        }
+
+        /**
+         * Publish the metrics as variables of the current JMeter thread
+         */
+        public void export(JMeterVariables variables) {
+            if (variables == null) {
+                return;
+            }
+            variables.put(OPEN_CONNECTIONS_VARIABLE, String.valueOf(openConnections));
+            variables.put(ACTIVE_STREAMS_VARIABLE, String.valueOf(activeStreams));
+            variables.put(MAX_STREAMS_PER_CONNECTION_VARIABLE, String.valueOf(maxStreamsPerConnection));
+            variables.put(PENDING_RESPONSES_VARIABLE, String.valueOf(pendingResponses));
+            variables.put(QUEUE_DEPTH_VARIABLE, String.valueOf(queueDepth));
+            variables.put(TASK_LATENCY_VARIABLE, String.valueOf(taskLatencyMicros));
+            variables.put(DIRECT_BUFFER_BYTES_VARIABLE, String.valueOf(directBufferBytes));
+            variables.put(MAX_PING_RTT_VARIABLE, String.valueOf(maxPingRttMicros));
+            variables.put(REFUSED_STREAMS_VARIABLE, String.valueOf(refusedStreams));
+            variables.put(GOAWAYS_RECEIVED_VARIABLE, String.valueOf(goAwaysReceived));
+            variables.put(RESETS_RECEIVED_VARIABLE, String.valueOf(resetsReceived));
+            variables.put(RESETS_SENT_VARIABLE, String.valueOf(resetsSent));
+            variables.put(PING_TIMEOUTS_VARIABLE, String.valueOf(pingTimeouts));
+        }
+
+        /**
+         * @return One {@code name=value} line per metric
+         */
+        @Override
+        public String toString() {
+            return OPEN_CONNECTIONS_VARIABLE + '=' + openConnections + '\n'
+                + ACTIVE_STREAMS_VARIABLE + '=' + activeStreams + '\n'
+                + MAX_STREAMS_PER_CONNECTION_VARIABLE + '=' + maxStreamsPerConnection + '\n'
+                + PENDING_RESPONSES_VARIABLE + '=' + pendingResponses + '\n'
+                + QUEUE_DEPTH_VARIABLE + '=' + queueDepth + '\n'
+                + TASK_LATENCY_VARIABLE + '=' + taskLatencyMicros + '\n'
+                + DIRECT_BUFFER_BYTES_VARIABLE + '=' + directBufferBytes + '\n'
+                + MAX_PING_RTT_VARIABLE + '=' + maxPingRttMicros + '\n'
+                + REFUSED_STREAMS_VARIABLE + '=' + refusedStreams + '\n'
+                + GOAWAYS_RECEIVED_VARIABLE + '=' + goAwaysReceived + '\n'
+                + RESETS_RECEIVED_VARIABLE + '=' + resetsReceived + '\n'
+                + RESETS_SENT_VARIABLE + '=' + resetsSent + '\n'
+                + PING_TIMEOUTS_VARIABLE + '=' + pingTimeouts + '\n';
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+/**
+ * JMX view of {@link Http2Metrics}, registered as {@value Http2Metrics#OBJECT_NAME} while a test runs
+ */
+public interface Http2MetricsMBean {
+
+    int getOpenConnections();
+
+    int getActiveStreams();
+
+    int getMaxActiveStreamsPerConnection();
+
+    int getPendingResponses();
+
+    int getEventLoopQueueDepth();
+
+    long getEventLoopTaskLatencyMicros();
+
+    long getDirectBufferBytes();
+
+    long getMaxPingRttMicros();
+
+    long getRefusedStreams();
+
+    long getGoAwaysReceived();
+
+    long getResetsReceived();
+
+    long getResetsSent();
+
+    long getPingTimeouts();
+}
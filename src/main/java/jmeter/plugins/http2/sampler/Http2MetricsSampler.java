@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+
+/**
+ * Records the {@link Http2Metrics} of the plugin as a sample.
+ *
+ * Meant to run in a thread group of its own, paced by a timer, next to the threads generating
+ * load. The elapsed time of a sample is the event loop task latency, so it plots along with the
+ * response times it may have distorted. A sample fails when that latency exceeds the configured
+ * limit: results recorded around it measure the client's backlog as much as the server.
+ */
+public class Http2MetricsSampler extends AbstractSampler {
+
+    private static final long serialVersionUID = 240L;
+
+    public static final String MAX_TASK_LATENCY = "Http2MetricsSampler.maxTaskLatency";
+
+    public static final long DEFAULT_MAX_TASK_LATENCY = 100;
+
+    @Override
+    public SampleResult sample(Entry e) {
+        final SampleResult res = new SampleResult();
+        res.setSampleLabel(getName());
+
+        final Http2Metrics.Snapshot snapshot = Http2Metrics.get().snapshot();
+        final long latencyMillis = TimeUnit.MICROSECONDS.toMillis(snapshot.taskLatencyMicros());
+        res.setStampAndTime(System.currentTimeMillis() - latencyMillis, latencyMillis);
+        res.setDataType(SampleResult.TEXT);
+        res.setResponseData(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+        snapshot.export(JMeterContextService.getContext().getVariables());
+
+        final long maxLatency = getMaxTaskLatency();
+        if (maxLatency >= 0 && latencyMillis > maxLatency) {
+            res.setSuccessful(false);
+            res.setResponseCode("500");
+            res.setResponseMessage("Event loop task latency " + latencyMillis + " ms exceeds " + maxLatency
+                + " ms, the load generator is saturated");
+        } else {
+            res.setSuccessful(true);
+            res.setResponseCodeOK();
+            res.setResponseMessageOK();
+        }
+        return res;
+    }
+
+    public void setMaxTaskLatency(long maxTaskLatency) {
+      setProperty(MAX_TASK_LATENCY, maxTaskLatency);
+    }
+
+    /**
+     * @return Event loop task latency in milliseconds above which a sample fails, negative to never fail
+     */
+    public long getMaxTaskLatency() {
+      return getPropertyAsLong(MAX_TASK_LATENCY, DEFAULT_MAX_TASK_LATENCY);
+    }
+}
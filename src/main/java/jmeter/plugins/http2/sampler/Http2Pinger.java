@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Measures the round-trip time of a connection with PING frames, and closes it when it stops answering.
+ *
+ * A PING is acknowledged by the peer's HTTP/2 stack without involving the application, so its
+ * round trip is the network's, apart from the server's processing time. PINGs are sent on
+ * demand, and with a keep-alive interval also on a schedule. A connection leaving a PING
+ * unanswered for longer than the timeout is closed: it is no longer usable then, so the next
+ * sample opens a new connection instead of stalling on a dead one. All methods but
+ * {@link #start(Channel)} and {@link #ping(Channel)} run on the event loop.
+ */
+public class Http2Pinger {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    /** Time a PING may stay unanswered when nothing else is configured */
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    /** JMeter variable holding the PING round-trip time measured by the last sample */
+    public static final String RTT_VARIABLE = "http2.ping_rtt_us";
+
+    /** Upper half of the payload telling RTT PINGs apart from window probes and other PINGs, "RTTP" */
+    private static final long PING_TAG = 0x52545450L << 32;
+    private static final long TAG_MASK = 0xffffffffL << 32;
+
+    private final Http2ConnectionHandler handler;
+    private final long intervalMillis;
+    private final long timeoutMillis;
+
+    // Only touched on the event loop
+    private final Map<Long, Ping> outstanding = new HashMap<Long, Ping>();
+    private int sequence;
+    private Ping keepAlive;
+
+    private volatile long lastRttMicros = -1;
+    private volatile long minRttMicros = -1;
+
+    /**
+     * @param handler The handler of the connection to ping
+     * @param intervalMillis Time between keep-alive PINGs, 0 or less to only ping on demand
+     * @param timeoutMillis Time a PING may stay unanswered before the connection is closed, 0 or less to wait forever
+     */
+    public Http2Pinger(Http2ConnectionHandler handler, long intervalMillis, long timeoutMillis) {
+        this.handler = handler;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Start the keep-alive PINGs once SETTINGS have been exchanged
+     */
+    public void start(final Channel channel) {
+        final ScheduledFuture<?> task = intervalMillis <= 0 ? null : channel.eventLoop().scheduleAtFixedRate(
+            new Runnable() {
+                @Override
+                public void run() {
+                    // One keep-alive PING at a time, an unanswered one is up to its timeout
+                    if (keepAlive == null || keepAlive.promise.isDone()) {
+                        keepAlive = send(channel, channel.eventLoop().<Long>newPromise());
+                    }
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (task != null) {
+                    task.cancel(false);
+                }
+                for (Ping ping : new ArrayList<Ping>(outstanding.values())) {
+                    ping.promise.tryFailure(new ClosedChannelException());
+                }
+                outstanding.clear();
+            }
+        });
+    }
+
+    /**
+     * Send a PING now
+     *
+     * @return Completed with the round-trip time in microseconds, or failed if the connection
+     *         closed or the timeout elapsed first
+     */
+    public Future<Long> ping(final Channel channel) {
+        final Promise<Long> promise = channel.eventLoop().newPromise();
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                send(channel, promise);
+            }
+        });
+        return promise;
+    }
+
+    private Ping send(final Channel channel, final Promise<Long> promise) {
+        final Ping ping = new Ping(promise);
+        if (!channel.isActive()) {
+            promise.tryFailure(new ClosedChannelException());
+            return ping;
+        }
+        final long payload = PING_TAG | (++sequence & 0xffffffffL);
+        outstanding.put(payload, ping);
+
+        final ChannelHandlerContext ctx = channel.pipeline().context(handler);
+        ByteBuf data = ctx.alloc().buffer(8).writeLong(payload);
+        ping.sentNanos = System.nanoTime();
+        handler.encoder().writePing(ctx, false, data, ctx.newPromise());
+        ctx.flush();
+
+        if (timeoutMillis > 0) {
+            channel.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (outstanding.remove(payload) == null) {
+                        return;
+                    }
+                    log.warn("No PING ACK from " + channel.remoteAddress() + " within " + timeoutMillis
+                        + " ms, closing the connection");
+                    Http2Metrics.get().pingTimedOut();
+                    promise.tryFailure(new IllegalStateException("Timed out waiting for PING ACK"));
+                    channel.close();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return ping;
+    }
+
+    /**
+     * @return {@code true} if the PING ACK answered a PING of this pinger
+     */
+    public boolean onPingAck(ByteBuf data) {
+        if (data.readableBytes() != 8) {
+            return false;
+        }
+        final long payload = data.getLong(data.readerIndex());
+        if ((payload & TAG_MASK) != PING_TAG) {
+            return false;
+        }
+        final Ping ping = outstanding.remove(payload);
+        if (ping == null) {
+            // Answered after its timeout
+            return true;
+        }
+        final long rttMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - ping.sentNanos);
+        lastRttMicros = rttMicros;
+        if (minRttMicros < 0 || rttMicros < minRttMicros) {
+            minRttMicros = rttMicros;
+        }
+        ping.promise.trySuccess(rttMicros);
+        return true;
+    }
+
+    /**
+     * @return The round-trip time of the last PING answered, in microseconds, -1 if none was
+     */
+    public long lastRttMicros() {
+        return lastRttMicros;
+    }
+
+    /**
+     * @return The shortest round-trip time of the PINGs answered, in microseconds, -1 if none was
+     */
+    public long minRttMicros() {
+        return minRttMicros;
+    }
+
+    private static final class Ping {
+        private final Promise<Long> promise;
+        private long sentNanos;
+
+        Ping(Promise<Long> promise) {
+            this.promise = promise;
+        }
+    }
+}
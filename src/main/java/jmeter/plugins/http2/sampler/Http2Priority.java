@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.Locale;
+
+/**
+ * The priority a stream of a multi-stream sample is sent with, in the priority fields of its HEADERS frame.
+ *
+ * Dependencies are given between the streams of a sample, by their position in it, and become
+ * stream ids when the stream is sent. A stream can only depend on a stream sent before it; a
+ * dependency on any other falls back to the root of the tree.
+ *
+ * Presets mimic the trees browsers build while loading a page, picking a weight from the resource
+ * type the path suggests:
+ * <ul>
+ * <li>{@value #PRESET_CHROME}: every stream depends exclusively on the latest stream sent with at
+ * least its weight, so the server is asked to serve them one after the other, by priority</li>
+ * <li>{@value #PRESET_SAFARI}: every stream depends on the root, so the streams share the bandwidth
+ * in proportion to their weights</li>
+ * </ul>
+ *
+ * Streams marked critical count towards the time to the critical resources of the sample; with
+ * none marked, the streams of the main path do.
+ */
+public final class Http2Priority {
+
+    public static final String PRESET_NONE = "none";
+    public static final String PRESET_CHROME = "chrome";
+    public static final String PRESET_SAFARI = "safari";
+    public static final String[] PRESETS = { PRESET_NONE, PRESET_CHROME, PRESET_SAFARI };
+
+    /** Weight of a stream sent without priority, as defined by the protocol */
+    public static final int DEFAULT_WEIGHT = 16;
+    public static final int MAX_WEIGHT = 256;
+
+    /** Dependency on the root of the tree */
+    public static final int ROOT = -1;
+    /** Dependency on the latest stream sent with at least the same weight */
+    public static final int LATEST_HEAVIER = -2;
+
+    /**
+     * Resource types told apart by the presets, with the weight each preset gives them
+     */
+    private enum ResourceType {
+        // Chrome maps its request priorities HIGHEST to LOWEST to the weights 256 to 147
+        DOCUMENT(256, 255),
+        STYLE(256, 24),
+        FONT(256, 24),
+        SCRIPT(220, 24),
+        OTHER(183, 16),
+        IMAGE(147, 8);
+
+        private final int chromeWeight;
+        private final int safariWeight;
+
+        private ResourceType(int chromeWeight, int safariWeight) {
+            this.chromeWeight = chromeWeight;
+            this.safariWeight = safariWeight;
+        }
+    }
+
+    private final int weight;
+    private final int dependency;
+    private final boolean exclusive;
+    private final boolean critical;
+
+    /**
+     * @param weight 1 to 256
+     * @param dependency Position of the stream depended on within the sample, {@link #ROOT} or {@link #LATEST_HEAVIER}
+     * @param exclusive {@code true} to become the only child of the stream depended on
+     * @param critical {@code true} if the stream counts towards the time to the critical resources
+     * @throws IllegalArgumentException if the weight is out of range
+     */
+    public Http2Priority(int weight, int dependency, boolean exclusive, boolean critical) {
+        if (weight < 1 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("Stream weight " + weight + " is not within 1 and " + MAX_WEIGHT);
+        }
+        this.weight = weight;
+        this.dependency = dependency;
+        this.exclusive = exclusive;
+        this.critical = critical;
+    }
+
+    /**
+     * @param preset One of {@link #PRESETS}
+     * @param path The path the stream requests
+     * @param document {@code true} for the main path of the sample, which stands for the page itself
+     * @return The priority {@code preset} gives the stream
+     */
+    public static Http2Priority preset(String preset, String path, boolean document) {
+        final ResourceType type = document ? ResourceType.DOCUMENT : resourceType(path);
+        if (PRESET_CHROME.equals(preset)) {
+            return new Http2Priority(type.chromeWeight, LATEST_HEAVIER, true, false);
+        }
+        if (PRESET_SAFARI.equals(preset)) {
+            return new Http2Priority(type.safariWeight, ROOT, false, false);
+        }
+        return new Http2Priority(DEFAULT_WEIGHT, ROOT, false, false);
+    }
+
+    /**
+     * Override some fields of {@code priority}
+     *
+     * @param attributes Whitespace separated {@code weight=<1-256>}, {@code depends=<position|root>},
+     *                   {@code exclusive} and {@code critical}, the position 0 being the first stream of the sample
+     * @throws IllegalArgumentException if an attribute is unknown or its value invalid
+     */
+    public static Http2Priority parse(String attributes, Http2Priority priority) {
+        int weight = priority.weight;
+        int dependency = priority.dependency;
+        boolean exclusive = priority.exclusive;
+        boolean critical = priority.critical;
+        for (String attribute : attributes.trim().split("\\s+")) {
+            final String name = attribute.toLowerCase(Locale.ROOT);
+            try {
+                if (name.startsWith("weight=")) {
+                    weight = Integer.parseInt(name.substring("weight=".length()));
+                } else if (name.equals("depends=root")) {
+                    dependency = ROOT;
+                } else if (name.startsWith("depends=")) {
+                    dependency = Integer.parseInt(name.substring("depends=".length()));
+                    if (dependency < 0) {
+                        throw new IllegalArgumentException("Negative stream position in " + attribute);
+                    }
+                } else if (name.equals("exclusive")) {
+                    exclusive = true;
+                } else if (name.equals("critical")) {
+                    critical = true;
+                } else if (!name.isEmpty()) {
+                    throw new IllegalArgumentException("Unknown priority attribute " + attribute);
+                }
+            } catch (NumberFormatException exception) {
+                throw new IllegalArgumentException("Invalid priority attribute " + attribute);
+            }
+        }
+        return new Http2Priority(weight, dependency, exclusive, critical);
+    }
+
+    private static ResourceType resourceType(String path) {
+        String name = path.toLowerCase(Locale.ROOT);
+        final int query = name.indexOf('?');
+        if (query >= 0) {
+            name = name.substring(0, query);
+        }
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/')) {
+            return ResourceType.OTHER;
+        }
+        switch (name.substring(dot + 1)) {
+        case "html":
+        case "htm":
+            return ResourceType.DOCUMENT;
+        case "css":
+            return ResourceType.STYLE;
+        case "woff":
+        case "woff2":
+        case "ttf":
+        case "otf":
+            return ResourceType.FONT;
+        case "js":
+        case "mjs":
+            return ResourceType.SCRIPT;
+        case "png":
+        case "jpg":
+        case "jpeg":
+        case "gif":
+        case "webp":
+        case "avif":
+        case "svg":
+        case "ico":
+            return ResourceType.IMAGE;
+        default:
+            return ResourceType.OTHER;
+        }
+    }
+
+    /**
+     * @return This priority depending on the stream at {@code dependency} instead
+     */
+    public Http2Priority withDependency(int dependency) {
+        return new Http2Priority(weight, dependency, exclusive, critical);
+    }
+
+    public int weight() {
+        return weight;
+    }
+
+    /**
+     * @return Position of the stream depended on within the sample, {@link #ROOT} or {@link #LATEST_HEAVIER}
+     */
+    public int dependency() {
+        return dependency;
+    }
+
+    public boolean isExclusive() {
+        return exclusive;
+    }
+
+    public boolean isCritical() {
+        return critical;
+    }
+}
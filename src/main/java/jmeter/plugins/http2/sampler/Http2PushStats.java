@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * What server push delivered during one sample.
+ *
+ * Exported as JMeter variables like {@link Http2Timings}. Totals add up over all streams of the
+ * sample. A pushed response spares the client its request, whose size is estimated by the header
+ * block of the PUSH_PROMISE carrying the same headers; a cancelled push wastes what it delivered
+ * before the RST_STREAM went out. The bytes saved are the former minus the latter.
+ */
+public final class Http2PushStats {
+
+    public static final String PROMISED_VARIABLE = "http2.push_promised";
+    public static final String RECEIVED_VARIABLE = "http2.push_received";
+    public static final String CANCELLED_VARIABLE = "http2.push_cancelled";
+    public static final String BYTES_VARIABLE = "http2.push_bytes";
+    public static final String WASTED_BYTES_VARIABLE = "http2.push_wasted_bytes";
+    public static final String SAVED_BYTES_VARIABLE = "http2.push_saved_bytes";
+
+    private int promised;
+    private int received;
+    private int cancelled;
+    private long bytes;
+    private long wastedBytes;
+    private long savedRequestBytes;
+
+    Http2PushStats() {
+    }
+
+    /**
+     * @param response A completed response, whose pushed responses are completed or failed
+     */
+    void add(Http2Response response) {
+        for (Http2Response pushed : response.pushes()) {
+            promised++;
+            if (!pushed.promise().isSuccess()) {
+                continue;
+            }
+            final long size = pushed.responseHeaderWireBytes() + pushed.bodyLength();
+            bytes += size;
+            if (pushed.isCancelled()) {
+                cancelled++;
+                wastedBytes += size;
+            } else {
+                received++;
+                savedRequestBytes += pushed.promisedHeaderWireBytes();
+            }
+        }
+    }
+
+    public int promised() {
+        return promised;
+    }
+
+    public int received() {
+        return received;
+    }
+
+    public int cancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return Bytes of the response headers and bodies pushed, including those of cancelled pushes
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Request bytes push spared the client, less the bytes of cancelled pushes, may be negative
+     */
+    public long savedBytes() {
+        return savedRequestBytes - wastedBytes;
+    }
+
+    /**
+     * Publish the counters as variables of the current JMeter thread
+     */
+    public void export(JMeterVariables variables) {
+        if (variables == null) {
+            return;
+        }
+        variables.put(PROMISED_VARIABLE, String.valueOf(promised));
+        variables.put(RECEIVED_VARIABLE, String.valueOf(received));
+        variables.put(CANCELLED_VARIABLE, String.valueOf(cancelled));
+        variables.put(BYTES_VARIABLE, String.valueOf(bytes));
+        variables.put(WASTED_BYTES_VARIABLE, String.valueOf(wastedBytes));
+        variables.put(SAVED_BYTES_VARIABLE, String.valueOf(savedBytes()));
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+
+/**
+ * The response received on one stream, filled frame by frame on the event loop.
+ *
+ * The body is never aggregated as a whole: every DATA frame is counted, optionally fed to a
+ * {@link MessageDigest}, and only the first {@code maxRetainedBytes} are copied, so memory per
+ * in-flight response is bounded whatever the payload size.
+ *
+ * The times of the first and the last frame are taken on the event loop as the frames are
+ * handled, so they do not depend on when the sampler thread wakes up.
+ */
+public class Http2Response {
+
+    private final int maxRetainedBytes;
+    private final MessageDigest digest;
+    private final ByteArrayOutputStream body;
+
+    private int streamId;
+    private ChannelPromise promise;
+    private FullHttpResponse head;
+    private long bodyLength;
+    private long resetErrorCode = -1;
+    private String digestHex;
+    private volatile long sendTime;
+    private volatile long requestSentTime;
+    private volatile long firstByteTime;
+    private volatile long endTime;
+    private HpackCounters hpack;
+    private int requestHeaderBytes;
+    private int requestHeaderWireBytes;
+    private int responseHeaderBytes;
+    private int responseHeaderWireBytes;
+    private String pushPath;
+    private int promisedHeaderWireBytes;
+    private boolean cancelled;
+    private List<Http2Response> pushes = Collections.emptyList();
+    private int streamDependency;
+    private short weight;
+    private boolean exclusive;
+
+    /**
+     * @param maxRetainedBytes Number of body bytes kept for the sample result, negative to keep everything
+     * @param digest Digest computed over the whole body, {@code null} for none
+     */
+    public Http2Response(int maxRetainedBytes, MessageDigest digest) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.digest = digest;
+        this.body = new ByteArrayOutputStream(maxRetainedBytes < 0 ? 256 : Math.min(maxRetainedBytes, 256));
+    }
+
+    void streamId(int streamId) {
+        this.streamId = streamId;
+    }
+
+    public int streamId() {
+        return streamId;
+    }
+
+    void promise(ChannelPromise promise) {
+        this.promise = promise;
+    }
+
+    /**
+     * @return The promise completed once the response has been received, failed on reset or timeout
+     */
+    public ChannelPromise promise() {
+        return promise;
+    }
+
+    /**
+     * Send the request with a priority, set before it is handed to the connection
+     *
+     * @param streamDependency Id of the stream depended on, 0 for the root
+     * @param weight 1 to 256
+     * @param exclusive {@code true} to become the only child of the stream depended on
+     */
+    void priority(int streamDependency, int weight, boolean exclusive) {
+        this.streamDependency = streamDependency;
+        this.weight = (short) weight;
+        this.exclusive = exclusive;
+    }
+
+    /**
+     * @return {@code true} if the request is sent with a priority
+     */
+    public boolean hasPriority() {
+        return weight > 0;
+    }
+
+    public int streamDependency() {
+        return streamDependency;
+    }
+
+    /**
+     * @return The weight the request is sent with, 0 if it has no priority
+     */
+    public short weight() {
+        return weight;
+    }
+
+    public boolean isExclusive() {
+        return exclusive;
+    }
+
+    /**
+     * Record the moment the request is handed to the connection
+     */
+    void send() {
+        this.sendTime = System.currentTimeMillis();
+    }
+
+    public long sendTime() {
+        return sendTime;
+    }
+
+    /**
+     * Record the moment the request has been written to the socket, called on the event loop
+     */
+    void requestSent() {
+        this.requestSentTime = System.currentTimeMillis();
+    }
+
+    public long requestSentTime() {
+        return requestSentTime;
+    }
+
+    /**
+     * Record the moment the first frame of the response arrived, called on the event loop
+     */
+    void firstByte() {
+        if (firstByteTime == 0) {
+            firstByteTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return The time the first frame of the response was processed, 0 if none arrived yet
+     */
+    public long firstByteTime() {
+        return firstByteTime;
+    }
+
+    void hpack(HpackCounters hpack) {
+        this.hpack = hpack;
+    }
+
+    /**
+     * @return The HPACK counters of the connection the stream was sent on
+     */
+    public HpackCounters hpack() {
+        return hpack;
+    }
+
+    /**
+     * Record the size of the request header block, called on the event loop
+     */
+    void requestHeaders(int headerBytes, int wireBytes) {
+        this.requestHeaderBytes = headerBytes;
+        this.requestHeaderWireBytes = wireBytes;
+    }
+
+    /**
+     * @return Octets of the request header names and values
+     */
+    public int requestHeaderBytes() {
+        return requestHeaderBytes;
+    }
+
+    /**
+     * @return Bytes of the HPACK encoded request header block
+     */
+    public int requestHeaderWireBytes() {
+        return requestHeaderWireBytes;
+    }
+
+    /**
+     * Record the size of a response header block, trailers add up with the headers
+     */
+    void responseHeaders(int headerBytes, int wireBytes) {
+        this.responseHeaderBytes += headerBytes;
+        this.responseHeaderWireBytes += wireBytes;
+    }
+
+    /**
+     * @return Octets of the response header (and trailer) names and values
+     */
+    public int responseHeaderBytes() {
+        return responseHeaderBytes;
+    }
+
+    /**
+     * @return Bytes of the HPACK encoded response header (and trailer) blocks
+     */
+    public int responseHeaderWireBytes() {
+        return responseHeaderWireBytes;
+    }
+
+    /**
+     * Turn this response into the response to a PUSH_PROMISE, called on the event loop
+     *
+     * The promise time stands in for the send time, as no request is sent for a pushed response.
+     *
+     * @param path The :path of the promised request
+     * @param headerWireBytes Bytes of the HPACK encoded header block of the promised request
+     */
+    void promised(String path, int headerWireBytes) {
+        this.pushPath = path;
+        this.promisedHeaderWireBytes = headerWireBytes;
+        send();
+    }
+
+    /**
+     * @return {@code true} if the server pushed this response
+     */
+    public boolean isPushed() {
+        return pushPath != null;
+    }
+
+    /**
+     * @return The path of the promised request, {@code null} if the response was not pushed
+     */
+    public String pushPath() {
+        return pushPath;
+    }
+
+    /**
+     * @return Bytes of the encoded promised request headers, about what the client would have sent to fetch it
+     */
+    public int promisedHeaderWireBytes() {
+        return promisedHeaderWireBytes;
+    }
+
+    /**
+     * Record that the client reset the pushed stream, called on the event loop
+     */
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * @return {@code true} if the client reset the pushed stream because it was too large
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Add a response the server pushed along with this one, called on the event loop
+     */
+    void push(Http2Response pushed) {
+        if (pushes.isEmpty()) {
+            pushes = new ArrayList<Http2Response>(4);
+        }
+        pushes.add(pushed);
+    }
+
+    /**
+     * @return The responses promised on this stream, safe to read once this response has completed
+     */
+    public List<Http2Response> pushes() {
+        return pushes;
+    }
+
+    void head(FullHttpResponse head) {
+        this.head = head;
+    }
+
+    /**
+     * @return Status and headers (plus trailers) translated to HTTP/1.x form, the content is always empty
+     */
+    public FullHttpResponse head() {
+        return head;
+    }
+
+    void data(ByteBuf data) throws IOException {
+        final int length = data.readableBytes();
+        bodyLength += length;
+
+        if (digest != null) {
+            digest.update(data.nioBuffer());
+        }
+
+        int retain = maxRetainedBytes < 0 ? length : Math.min(length, maxRetainedBytes - body.size());
+        if (retain > 0) {
+            data.getBytes(data.readerIndex(), body, retain);
+        }
+    }
+
+    /**
+     * Record the moment the response completed, called on the event loop
+     */
+    void end() {
+        this.endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The time the last frame of the response was processed, 0 while still in flight
+     */
+    public long endTime() {
+        return endTime;
+    }
+
+    void reset(long errorCode) {
+        this.resetErrorCode = errorCode;
+    }
+
+    /**
+     * @return {@code true} if the server reset the stream instead of completing it
+     */
+    public boolean isReset() {
+        return resetErrorCode >= 0;
+    }
+
+    public long resetErrorCode() {
+        return resetErrorCode;
+    }
+
+    /**
+     * @return The number of body bytes received, including those not retained
+     */
+    public long bodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return The retained prefix of the body
+     */
+    public byte[] body() {
+        return body.toByteArray();
+    }
+
+    /**
+     * @return {@code true} if bytes were dropped because of the retention limit
+     */
+    public boolean isTruncated() {
+        return bodyLength > body.size();
+    }
+
+    /**
+     * @return The digest of the whole body in lower case hex, {@code null} if no digest was requested
+     */
+    public String digestHex() {
+        if (digest == null || digestHex != null) {
+            return digestHex;
+        }
+        byte[] bytes = digest.digest();
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        digestHex = hex.toString();
+        return digestHex;
+    }
+}
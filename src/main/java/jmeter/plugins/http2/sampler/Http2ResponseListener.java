@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.io.IOException;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2EventAdapter;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.HttpUtil;
+
+/**
+ * Handles HTTP/2 frames as they arrive and fills the {@link Http2Response} registered for the stream.
+ *
+ * Unlike {@link io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter} it never aggregates a
+ * body. A completed or reset response, as well as every SETTINGS frame, is passed on through the
+ * pipeline to the {@link HttpResponseHandler} and the {@link Http2SettingsHandler}.
+ *
+ * With server push enabled, every PUSH_PROMISE on a stream being waited for registers a response
+ * for the promised stream, attached to the response of the stream it was promised on. Pushed
+ * responses growing beyond the size limit are cancelled with RST_STREAM.
+ */
+public class Http2ResponseListener extends Http2EventAdapter {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private final HttpResponseHandler responseHandler;
+    private Http2WindowTuner windowTuner;
+    private Http2Pinger pinger;
+    private HpackCounters hpack;
+    private Http2ConnectionHandler pushHandler;
+    private long pushSizeLimit = -1;
+
+    public Http2ResponseListener(HttpResponseHandler responseHandler) {
+        this.responseHandler = responseHandler;
+    }
+
+    /**
+     * @param windowTuner Told about every DATA frame and PING ACK of the connection first
+     */
+    void windowTuner(Http2WindowTuner windowTuner) {
+        this.windowTuner = windowTuner;
+    }
+
+    /**
+     * @param pinger Told about every PING ACK not answering a window probe
+     */
+    void pinger(Http2Pinger pinger) {
+        this.pinger = pinger;
+    }
+
+    /**
+     * @param hpack Holds the size of the header block just decoded
+     */
+    void hpack(HpackCounters hpack) {
+        this.hpack = hpack;
+    }
+
+    /**
+     * Accept pushed responses, the SETTINGS must enable push as well
+     *
+     * @param connectionHandler Writes the RST_STREAM frames cancelling pushes
+     * @param sizeLimit Size in bytes above which a pushed response is cancelled, negative to accept any size
+     */
+    void push(Http2ConnectionHandler connectionHandler, long sizeLimit) {
+        this.pushHandler = connectionHandler;
+        this.pushSizeLimit = sizeLimit;
+    }
+
+    @Override
+    public void onPushPromiseRead(ChannelHandlerContext ctx, int streamId, final int promisedStreamId,
+            Http2Headers headers, int padding) throws Http2Exception {
+        Http2Response parent = pushHandler != null ? responseHandler.response(streamId) : null;
+        if (parent == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("PUSH_PROMISE received for unknown stream id " + streamId);
+            }
+            return;
+        }
+
+        final Http2Response pushed = new Http2Response(0, null);
+        pushed.streamId(promisedStreamId);
+        final CharSequence path = headers.path();
+        pushed.promised(path != null ? path.toString() : "/",
+            hpack != null ? hpack.decoder().lastWireBytes() : 0);
+        responseHandler.put(promisedStreamId, ctx.newPromise(), pushed);
+        pushed.promise().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                responseHandler.remove(promisedStreamId);
+            }
+        });
+        parent.push(pushed);
+    }
+
+    @Override
+    public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding,
+            boolean endOfStream) throws Http2Exception {
+        Http2Response response = responseHandler.response(streamId);
+        if (response == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("HEADERS received for unknown stream id " + streamId);
+            }
+            return;
+        }
+
+        if (hpack != null) {
+            // Decoded right before this call, on the same thread
+            response.responseHeaders(hpack.decoder().lastHeaderBytes(), hpack.decoder().lastWireBytes());
+        }
+        if (response.head() == null) {
+            response.firstByte();
+            response.head(HttpUtil.toHttpResponse(streamId, headers, false));
+        } else {
+            // Trailing headers
+            HttpUtil.addHttp2ToHttpHeaders(streamId, headers, response.head(), true);
+        }
+
+        if (response.isPushed() && !endOfStream && pushSizeLimit >= 0) {
+            final long contentLength = response.head().headers().getLong(HttpHeaderNames.CONTENT_LENGTH, -1);
+            if (contentLength > pushSizeLimit) {
+                cancel(ctx, response);
+                return;
+            }
+        }
+
+        if (endOfStream) {
+            ctx.fireChannelRead(response);
+        }
+    }
+
+    @Override
+    public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int streamDependency,
+            short weight, boolean exclusive, int padding, boolean endOfStream) throws Http2Exception {
+        onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+    }
+
+    @Override
+    public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding, boolean endOfStream)
+            throws Http2Exception {
+        // Everything is consumed right away, so flow control windows are replenished immediately
+        final int processed = data.readableBytes() + padding;
+        if (windowTuner != null) {
+            windowTuner.onData(ctx, processed);
+        }
+
+        Http2Response response = responseHandler.response(streamId);
+        if (response == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("DATA received for unknown stream id " + streamId);
+            }
+            return processed;
+        }
+
+        response.firstByte();
+        try {
+            response.data(data);
+        } catch (IOException exception) {
+            throw new Http2Exception(Http2Error.INTERNAL_ERROR, exception.getMessage(), exception);
+        }
+
+        if (response.isPushed() && !endOfStream && pushSizeLimit >= 0 && response.bodyLength() > pushSizeLimit) {
+            cancel(ctx, response);
+            return processed;
+        }
+
+        if (endOfStream) {
+            ctx.fireChannelRead(response);
+        }
+
+        return processed;
+    }
+
+    @Override
+    public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) throws Http2Exception {
+        Http2Metrics.get().resetReceived();
+        Http2Response response = responseHandler.response(streamId);
+        if (response != null) {
+            response.reset(errorCode);
+            ctx.fireChannelRead(response);
+        }
+    }
+
+    @Override
+    public void onGoAwayRead(ChannelHandlerContext ctx, int lastStreamId, long errorCode, ByteBuf debugData)
+            throws Http2Exception {
+        Http2Metrics.get().goAwayReceived();
+        // The streams above lastStreamId would otherwise wait for the response timeout
+        responseHandler.refuseAbove(lastStreamId);
+    }
+
+    /**
+     * Reset a pushed stream the client does not want, and complete its response with what arrived so far
+     */
+    private void cancel(ChannelHandlerContext ctx, Http2Response response) {
+        if (log.isDebugEnabled()) {
+            log.debug("Cancelling pushed stream id " + response.streamId() + " over " + pushSizeLimit + " bytes");
+        }
+        response.cancel();
+        pushHandler.encoder().writeRstStream(ctx, response.streamId(), Http2Error.CANCEL.code(), ctx.newPromise());
+        Http2Metrics.get().resetSent();
+        ctx.flush();
+        ctx.fireChannelRead(response);
+    }
+
+    @Override
+    public void onPingAckRead(ChannelHandlerContext ctx, ByteBuf data) throws Http2Exception {
+        if (windowTuner != null && windowTuner.onPingAck(ctx, data)) {
+            return;
+        }
+        if (pinger != null) {
+            pinger.onPingAck(data);
+        }
+    }
+
+    @Override
+    public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) throws Http2Exception {
+        ctx.fireChannelRead(settings);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Tracks the streams of one sample and releases a single latch once all of them have finished.
+ *
+ * Streams are counted down from their promise listeners on the event loop, so the sampler
+ * thread waits once against an overall deadline instead of on every stream in turn. Waiting
+ * holds no monitor, so virtual threads are not pinned while they wait.
+ */
+public class Http2ResponseTracker implements ChannelFutureListener {
+
+    /** Starts at one for the pending {@link #seal()}, so the latch cannot open while streams are still added */
+    private final AtomicInteger outstanding = new AtomicInteger(1);
+    private final Semaphore finished = new Semaphore(0);
+    private final CountDownLatch all = new CountDownLatch(1);
+    private volatile boolean sealed;
+
+    /**
+     * @param promise The promise of a stream sent for the sample, successful or failed once the stream is over
+     */
+    public void track(ChannelPromise promise) {
+        outstanding.incrementAndGet();
+        promise.addListener(this);
+    }
+
+    /**
+     * Declare that no more streams will be tracked
+     */
+    public void seal() {
+        sealed = true;
+        countDown();
+    }
+
+    /**
+     * @return The number of tracked streams which have not finished yet
+     */
+    public int inFlight() {
+        return outstanding.get() - (sealed ? 0 : 1);
+    }
+
+    /**
+     * Wait until any tracked stream finishes that no earlier call has accounted for
+     *
+     * @param deadline {@link System#nanoTime()} after which to give up
+     * @return {@code false} if the deadline passed first or the thread was interrupted
+     */
+    public boolean awaitAny(long deadline) {
+        try {
+            return finished.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait until every tracked stream has finished, {@link #seal()} must have been called
+     *
+     * @param deadline {@link System#nanoTime()} after which to give up
+     * @return {@code false} if the deadline passed first or the thread was interrupted
+     */
+    public boolean awaitAll(long deadline) {
+        try {
+            return all.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+        finished.release();
+        countDown();
+    }
+
+    private void countDown() {
+        if (outstanding.decrementAndGet() == 0) {
+            all.countDown();
+        }
+    }
+}
@@ -26,9 +26,14 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Reads the first {@link Http2Settings} object and notifies a {@link ChannelPromise}
+ *
+ * Stays in the pipeline afterwards, so that SETTINGS_MAX_CONCURRENT_STREAMS follows the updates of the server.
  */
 public class Http2SettingsHandler extends SimpleChannelInboundHandler<Http2Settings> {
     private ChannelPromise promise;
+    private volatile Http2Settings settings;
+    private volatile long receivedNanos;
+    private volatile int maxConcurrentStreams = Integer.MAX_VALUE;
 
     /**
      * Create new instance
@@ -48,7 +53,7 @@ public class Http2SettingsHandler extends SimpleChannelInboundHandler<Http2Setti
      * @throws Exception if timeout or other failure occurs
      */
     public void awaitSettings(long timeout, TimeUnit unit) throws Exception {
-        if (!promise.awaitUninterruptibly(timeout, unit)) {
+        if (!Http2Await.awaitUninterruptibly(promise, timeout, unit)) {
             throw new IllegalStateException("Timed out waiting for settings");
         }
         if (!promise.isSuccess()) {
@@ -56,11 +61,47 @@ public class Http2SettingsHandler extends SimpleChannelInboundHandler<Http2Setti
         }
     }
 
+    /**
+     * @return The first SETTINGS received from the server, or {@code null} if none arrived yet
+     */
+    public Http2Settings settings() {
+        return settings;
+    }
+
+    /**
+     * @return The latest SETTINGS_MAX_CONCURRENT_STREAMS of the server, {@link Integer#MAX_VALUE} while unlimited
+     */
+    public int maxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} the first SETTINGS arrived at, 0 if none arrived yet
+     */
+    public long receivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Give up waiting, e.g. because the server refused to speak HTTP/2
+     *
+     * @param cause Reported by {@link #awaitSettings(long, TimeUnit)}
+     */
+    public void fail(Throwable cause) {
+        promise.tryFailure(cause);
+    }
+
     @Override
     protected void messageReceived(ChannelHandlerContext ctx, Http2Settings msg) throws Exception {
-        promise.setSuccess();
-
-        // Only care about the first settings message
-        ctx.pipeline().remove(this);
+        // Updates only carry the settings they change
+        final Long maxStreams = msg.maxConcurrentStreams();
+        if (maxStreams != null) {
+            maxConcurrentStreams = maxStreams > Integer.MAX_VALUE ? Integer.MAX_VALUE : maxStreams.intValue();
+        }
+        if (settings == null) {
+            receivedNanos = System.nanoTime();
+            settings = msg;
+            promise.trySuccess();
+        }
     }
 }
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * The order in which the streams of a multi-stream sample completed, and when its critical ones had.
+ *
+ * Exported as JMeter variables like {@link Http2Timings}. Comparing the time to the critical
+ * streams with and without priorities tells how much the server's prioritisation helped.
+ */
+public final class Http2StreamOrder {
+
+    public static final String COMPLETION_ORDER_VARIABLE = "http2.completion_order";
+    public static final String CRITICAL_VARIABLE = "http2.critical_ms";
+
+    private final StringBuilder completionOrder = new StringBuilder();
+    private long startTime;
+    private long criticalEnd;
+    private boolean criticalFailed;
+    private boolean recorded;
+
+    Http2StreamOrder() {
+    }
+
+    /**
+     * Start over for a new sample
+     */
+    void reset(long startTime) {
+        this.startTime = startTime;
+        completionOrder.setLength(0);
+        criticalEnd = 0;
+        criticalFailed = false;
+        recorded = false;
+    }
+
+    /**
+     * Record the next stream to complete successfully, in completion order
+     *
+     * @param endTime Time the last frame of its response was handled
+     */
+    void completed(String path, long endTime, boolean critical) {
+        recorded = true;
+        if (completionOrder.length() > 0) {
+            completionOrder.append(',');
+        }
+        completionOrder.append(path);
+        if (critical) {
+            criticalEnd = Math.max(criticalEnd, endTime);
+        }
+    }
+
+    /**
+     * Record a stream that failed
+     */
+    void failed(boolean critical) {
+        recorded = true;
+        criticalFailed |= critical;
+    }
+
+    /**
+     * @return The paths of the successful streams, comma separated in the order they completed
+     */
+    public String completionOrder() {
+        return completionOrder.toString();
+    }
+
+    /**
+     * @return Milliseconds from the start of the sample until every critical stream had completed, -1 if one failed
+     */
+    public long criticalMillis() {
+        return criticalFailed || criticalEnd == 0 ? -1 : criticalEnd - startTime;
+    }
+
+    /**
+     * Publish the order as variables of the current JMeter thread, unless no multi-stream sample recorded it
+     */
+    public void export(JMeterVariables variables) {
+        if (!recorded) {
+            return;
+        }
+        variables.put(COMPLETION_ORDER_VARIABLE, completionOrder());
+        variables.put(CRITICAL_VARIABLE, String.valueOf(criticalMillis()));
+    }
+}
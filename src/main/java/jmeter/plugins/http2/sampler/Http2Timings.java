@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * Duration of each phase of a request in milliseconds.
+ *
+ * The connection phases are only non-zero for the request which opened the connection. They
+ * are exported as JMeter variables, which can be written to the results with the
+ * {@code sample_variables} property, because {@link org.apache.jmeter.samplers.SampleResult}
+ * has no room for custom fields.
+ */
+public final class Http2Timings {
+
+    public static final String DNS_VARIABLE = "http2.dns_ms";
+    public static final String TCP_CONNECT_VARIABLE = "http2.tcp_connect_ms";
+    public static final String TLS_HANDSHAKE_VARIABLE = "http2.tls_handshake_ms";
+    public static final String SETTINGS_VARIABLE = "http2.settings_ms";
+    public static final String REQUEST_SENT_VARIABLE = "http2.request_sent_ms";
+    public static final String FIRST_BYTE_VARIABLE = "http2.first_byte_ms";
+    public static final String BODY_VARIABLE = "http2.body_ms";
+
+    private long acquire;
+    private long dns;
+    private long tcpConnect;
+    private long tlsHandshake;
+    private long settings;
+    private long requestSent;
+    private long firstByte;
+    private long body;
+
+    Http2Timings() {
+    }
+
+    /**
+     * Timings of a newly established connection
+     */
+    Http2Timings(long dns, long tcpConnect, long tlsHandshake, long settings) {
+        this.dns = dns;
+        this.tcpConnect = tcpConnect;
+        this.tlsHandshake = tlsHandshake;
+        this.settings = settings;
+    }
+
+    /**
+     * @param acquire Time spent getting a connection with a free stream slot
+     * @param setup Timings of the connection if the request opened it, {@code null} if it was reused
+     */
+    void connection(long acquire, Http2Timings setup) {
+        this.acquire = acquire;
+        if (setup != null) {
+            dns = setup.dns;
+            tcpConnect = setup.tcpConnect;
+            tlsHandshake = setup.tlsHandshake;
+            settings = setup.settings;
+        }
+    }
+
+    /**
+     * @param response A completed response, whose frame times were taken on the event loop
+     */
+    void stream(Http2Response response) {
+        requestSent = Math.max(0, response.requestSentTime() - response.sendTime());
+        firstByte = Math.max(0, response.firstByteTime() - response.sendTime());
+        body = Math.max(0, response.endTime() - response.firstByteTime());
+    }
+
+    /**
+     * @return Time spent getting a connection, including its setup if it had to be opened
+     */
+    public long acquire() {
+        return acquire;
+    }
+
+    public long dns() {
+        return dns;
+    }
+
+    public long tcpConnect() {
+        return tcpConnect;
+    }
+
+    /**
+     * @return Duration of the TLS handshake including ALPN negotiation, 0 for cleartext
+     */
+    public long tlsHandshake() {
+        return tlsHandshake;
+    }
+
+    /**
+     * @return Time from the end of the handshake until the server SETTINGS arrived
+     */
+    public long settings() {
+        return settings;
+    }
+
+    /**
+     * @return Time from handing the request to the connection until it was written to the socket
+     */
+    public long requestSent() {
+        return requestSent;
+    }
+
+    /**
+     * @return Time from handing the request to the connection until the first response frame
+     */
+    public long firstByte() {
+        return firstByte;
+    }
+
+    /**
+     * @return Time from the first until the last response frame
+     */
+    public long body() {
+        return body;
+    }
+
+    /**
+     * Publish the phases as variables of the current JMeter thread
+     */
+    public void export(JMeterVariables variables) {
+        if (variables == null) {
+            return;
+        }
+        variables.put(DNS_VARIABLE, String.valueOf(dns));
+        variables.put(TCP_CONNECT_VARIABLE, String.valueOf(tcpConnect));
+        variables.put(TLS_HANDSHAKE_VARIABLE, String.valueOf(tlsHandshake));
+        variables.put(SETTINGS_VARIABLE, String.valueOf(settings));
+        variables.put(REQUEST_SENT_VARIABLE, String.valueOf(requestSent));
+        variables.put(FIRST_BYTE_VARIABLE, String.valueOf(firstByte));
+        variables.put(BODY_VARIABLE, String.valueOf(body));
+    }
+}
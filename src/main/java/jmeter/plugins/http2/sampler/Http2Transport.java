@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * The Netty transport the event loop group and the client channels are built with.
+ *
+ * The native epoll transport saves syscalls and garbage compared to NIO on Linux. io_uring is
+ * not part of Netty itself; it is only picked if a transport with the expected class names is
+ * on the class path and reports itself available. Whatever is requested, the selection falls
+ * back to the next best transport that works on this machine.
+ */
+public final class Http2Transport {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    /** JMeter property selecting the transport: auto, nio, epoll or io_uring */
+    public static final String PROPERTY = "http2sampler.transport";
+
+    public static final String AUTO = "auto";
+    public static final String NIO = "nio";
+    public static final String EPOLL = "epoll";
+    public static final String IO_URING = "io_uring";
+
+    private static final String IO_URING_PACKAGE = "io.netty.channel.uring.";
+
+    private final String name;
+    private final Class<? extends EventLoopGroup> groupClass;
+    private final Class<? extends Channel> channelClass;
+
+    private Http2Transport(String name, Class<? extends EventLoopGroup> groupClass,
+            Class<? extends Channel> channelClass) {
+        this.name = name;
+        this.groupClass = groupClass;
+        this.channelClass = channelClass;
+    }
+
+    /**
+     * @param requested The name of the wanted transport, {@link #AUTO} for the best available one
+     * @return The requested transport if it works here, otherwise the best available fallback
+     */
+    public static Http2Transport select(String requested) {
+        if (NIO.equalsIgnoreCase(requested)) {
+            return nio();
+        }
+        if (IO_URING.equalsIgnoreCase(requested) || AUTO.equalsIgnoreCase(requested)) {
+            Http2Transport ioUring = ioUring();
+            if (ioUring != null) {
+                return ioUring;
+            }
+            if (IO_URING.equalsIgnoreCase(requested)) {
+                log.warn("io_uring transport not available, falling back");
+            }
+        } else if (!EPOLL.equalsIgnoreCase(requested)) {
+            log.warn("Unknown transport " + requested + ", choosing automatically");
+        }
+
+        if (Epoll.isAvailable()) {
+            return new Http2Transport(EPOLL, EpollEventLoopGroup.class, EpollSocketChannel.class);
+        }
+        if (EPOLL.equalsIgnoreCase(requested)) {
+            log.warn("epoll transport not available, falling back to nio: " + Epoll.unavailabilityCause());
+        }
+        return nio();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Class<? extends Channel> channelClass() {
+        return channelClass;
+    }
+
+    /**
+     * @param threads Number of event loops
+     * @return A new group of this transport
+     */
+    public EventLoopGroup newGroup(int threads) {
+        try {
+            return groupClass.getConstructor(int.class).newInstance(threads);
+        } catch (Exception exception) {
+            throw new IllegalStateException("Cannot create " + name + " event loop group", exception);
+        }
+    }
+
+    /**
+     * @return The TCP_QUICKACK option if this transport supports it, {@code null} otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public ChannelOption<Boolean> tcpQuickAck() {
+        if (!EPOLL.equals(name)) {
+            return null;
+        }
+        try {
+            // Only newer Netty releases know the option
+            Field field = EpollChannelOption.class.getField("TCP_QUICKACK");
+            return (ChannelOption<Boolean>) field.get(null);
+        } catch (Exception exception) {
+            return null;
+        }
+    }
+
+    private static Http2Transport nio() {
+        return new Http2Transport(NIO, NioEventLoopGroup.class, NioSocketChannel.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Http2Transport ioUring() {
+        try {
+            ClassLoader loader = Http2Transport.class.getClassLoader();
+            Method isAvailable = Class.forName(IO_URING_PACKAGE + "IOUring", true, loader).getMethod("isAvailable");
+            if (!Boolean.TRUE.equals(isAvailable.invoke(null))) {
+                return null;
+            }
+            Class<?> groupClass = Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup", true, loader);
+            Class<?> channelClass = Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel", true, loader);
+            if (!EventLoopGroup.class.isAssignableFrom(groupClass) || !SocketChannel.class.isAssignableFrom(channelClass)) {
+                return null;
+            }
+            return new Http2Transport(IO_URING, (Class<? extends EventLoopGroup>) groupClass,
+                (Class<? extends Channel>) channelClass);
+        } catch (Throwable throwable) {
+            // Not on the class path, built for another Netty version, or no kernel support
+            return null;
+        }
+    }
+}
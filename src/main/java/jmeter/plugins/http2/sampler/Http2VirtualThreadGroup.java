@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jmeter.engine.StandardJMeterEngine;
+import org.apache.jmeter.engine.TreeCloner;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterThread;
+import org.apache.jmeter.threads.ListenerNotifier;
+import org.apache.jmeter.threads.ThreadGroup;
+import org.apache.jorphan.collections.ListedHashTree;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A thread group running each virtual user on a virtual thread instead of a platform thread.
+ *
+ * While {@link HTTP2Sampler} waits for a response, a virtual thread unmounts from its carrier, so
+ * tens of thousands of users cost a few platform threads and their stacks. Virtual threads need
+ * Java 21 or later; they are created reflectively so the plugin still builds and runs on older
+ * JDKs, where the group falls back to platform threads and logs a warning.
+ *
+ * Number of threads, ramp-up, loops and the scheduler work as in the standard thread group.
+ * Ramp-up is applied as an initial delay of every thread rather than by a starter thread.
+ */
+public class Http2VirtualThreadGroup extends ThreadGroup {
+
+    private static final long serialVersionUID = 240L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final long WAIT_TO_DIE_MS = 5000;
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException exception) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    private final transient Map<JMeterThread, Thread> threads = new ConcurrentHashMap<JMeterThread, Thread>();
+    private transient volatile boolean running;
+
+    /**
+     * @return {@code true} if the JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    @Override
+    public void start(int groupCount, ListenerNotifier notifier, ListedHashTree threadGroupTree,
+            StandardJMeterEngine engine) {
+        running = true;
+        final int numThreads = getNumThreads();
+        final long rampUpMillis = getRampUp() * 1000L;
+        final JMeterContext context = JMeterContextService.getContext();
+        final long now = System.currentTimeMillis();
+        if (!isVirtualThreadsAvailable()) {
+            log.warn("Virtual threads need Java 21 or later, " + getName() + " runs on platform threads");
+        }
+        log.info("Starting " + numThreads + " " + (isVirtualThreadsAvailable() ? "virtual" : "platform")
+            + " threads for group " + getName());
+
+        JMeterContextService.addTotalThreads(numThreads);
+        for (int i = 0; running && i < numThreads; i++) {
+            final JMeterThread jmThread = makeThread(groupCount, notifier, threadGroupTree, engine, i, context);
+            jmThread.setInitialDelay((int) (numThreads > 0 ? rampUpMillis * i / numThreads : 0));
+            scheduleThread(jmThread, now);
+            final Thread thread = newThread(jmThread, jmThread.getThreadName());
+            threads.put(jmThread, thread);
+            thread.start();
+        }
+    }
+
+    private JMeterThread makeThread(int groupCount, ListenerNotifier notifier, ListedHashTree threadGroupTree,
+            StandardJMeterEngine engine, int threadNum, JMeterContext context) {
+        final TreeCloner cloner = new TreeCloner(true);
+        threadGroupTree.traverse(cloner);
+        final JMeterThread jmThread = new JMeterThread(cloner.getClonedTree(), this, notifier);
+        jmThread.setThreadNum(threadNum);
+        jmThread.setThreadGroup(this);
+        jmThread.setInitialContext(context);
+        jmThread.setThreadName(getName() + " " + groupCount + "-" + (threadNum + 1));
+        jmThread.setEngine(engine);
+        jmThread.setOnErrorStopTest(getOnErrorStopTest());
+        jmThread.setOnErrorStopTestNow(getOnErrorStopTestNow());
+        jmThread.setOnErrorStopThread(getOnErrorStopThread());
+        jmThread.setOnErrorStartNextLoop(getOnErrorStartNextLoop());
+        return jmThread;
+    }
+
+    /**
+     * Apply the scheduler settings the way the standard thread group does
+     */
+    private void scheduleThread(JMeterThread thread, long now) {
+        if (!getScheduler()) {
+            return;
+        }
+        if (getDelay() > 0) {
+            thread.setStartTime(getDelay() * 1000 + now);
+        } else {
+            thread.setStartTime(Math.max(getStartTime(), now));
+        }
+        if (getDuration() > 0) {
+            thread.setEndTime(getDuration() * 1000 + thread.getStartTime());
+        } else {
+            thread.setEndTime(getEndTime());
+        }
+        thread.setScheduled(true);
+    }
+
+    /**
+     * @return An unstarted virtual thread running {@code task}, a platform thread if virtual threads are not available
+     */
+    static Thread newThread(Runnable task, String name) {
+        if (OF_VIRTUAL != null) {
+            try {
+                final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException exception) {
+                log.warn("Could not create a virtual thread, using a platform thread", exception);
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    @Override
+    public boolean stopThread(String threadName, boolean now) {
+        for (Map.Entry<JMeterThread, Thread> entry : threads.entrySet()) {
+            final JMeterThread jmThread = entry.getKey();
+            if (jmThread.getThreadName().equals(threadName)) {
+                jmThread.stop();
+                if (now) {
+                    jmThread.interrupt();
+                    entry.getValue().interrupt();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void threadFinished(JMeterThread thread) {
+        threads.remove(thread);
+    }
+
+    @Override
+    public void tellThreadsToStop() {
+        running = false;
+        for (Map.Entry<JMeterThread, Thread> entry : threads.entrySet()) {
+            entry.getKey().stop();
+            entry.getKey().interrupt();
+            entry.getValue().interrupt();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        for (JMeterThread jmThread : threads.keySet()) {
+            jmThread.stop();
+        }
+    }
+
+    @Override
+    public int numberOfActiveThreads() {
+        return threads.size();
+    }
+
+    @Override
+    public boolean verifyThreadsStopped() {
+        boolean stopped = true;
+        for (Thread thread : threads.values()) {
+            if (!join(thread, WAIT_TO_DIE_MS)) {
+                log.warn("Thread won't exit: " + thread.getName());
+                stopped = false;
+            }
+        }
+        return stopped;
+    }
+
+    @Override
+    public void waitThreadsStopped() {
+        for (Thread thread : threads.values()) {
+            while (!join(thread, WAIT_TO_DIE_MS) && !Thread.currentThread().isInterrupted()) {
+                log.debug("Waiting for thread " + thread.getName() + " to exit");
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code thread} has terminated within {@code millis}
+     */
+    private static boolean join(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2Settings;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Grows the receive windows of a connection beyond the 64 KiB protocol default.
+ *
+ * A fixed connection window is announced with a WINDOW_UPDATE once the connection is
+ * established. In auto-tune mode the bandwidth-delay product is estimated by counting the DATA
+ * bytes received between sending a PING and receiving its ACK. Whenever they fill two thirds of
+ * the window, the connection window and the initial stream window are raised to twice the
+ * estimate, up to {@link #MAX_WINDOW}. All methods but {@link #start(Channel)} run on the event loop.
+ */
+public class Http2WindowTuner {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    /** Initial window size defined by the protocol */
+    public static final int DEFAULT_WINDOW = 65535;
+    /** Largest window auto-tuning grows to */
+    public static final int MAX_WINDOW = 16 * 1024 * 1024;
+
+    /** Payload telling window probes apart from other PINGs */
+    private static final long PROBE_PING_DATA = 0x42445050524f4245L;
+
+    private final Http2ConnectionHandler handler;
+    private final int initialConnectionWindow;
+    private final boolean autoTune;
+
+    private int connectionWindow = DEFAULT_WINDOW;
+    private int streamWindow;
+    private boolean probing;
+    private long probeBytes;
+
+    /**
+     * @param handler The handler of the connection whose windows are grown
+     * @param settings The SETTINGS sent by the client, for the initial stream window
+     * @param connectionWindow Connection window to announce once established, 0 for the default
+     * @param autoTune {@code true} to keep growing the windows with the measured bandwidth-delay product
+     */
+    public Http2WindowTuner(Http2ConnectionHandler handler, Http2Settings settings, int connectionWindow,
+            boolean autoTune) {
+        this.handler = handler;
+        this.initialConnectionWindow = connectionWindow;
+        this.autoTune = autoTune;
+        Integer initialWindowSize = settings.initialWindowSize();
+        this.streamWindow = initialWindowSize != null ? initialWindowSize : DEFAULT_WINDOW;
+    }
+
+    /**
+     * Announce the configured connection window once SETTINGS have been exchanged
+     */
+    public void start(final Channel channel) {
+        if (initialConnectionWindow <= DEFAULT_WINDOW) {
+            return;
+        }
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    growConnectionWindow(channel.pipeline().context(handler), initialConnectionWindow);
+                } catch (Http2Exception exception) {
+                    log.warn("Cannot grow connection window of " + channel, exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * Count received DATA bytes and start a bandwidth-delay probe if none is running
+     */
+    public void onData(ChannelHandlerContext ctx, int bytes) {
+        if (!autoTune) {
+            return;
+        }
+        probeBytes += bytes;
+        if (!probing) {
+            probing = true;
+            probeBytes = bytes;
+            ByteBuf data = ctx.alloc().buffer(8).writeLong(PROBE_PING_DATA);
+            handler.encoder().writePing(ctx, false, data, ctx.newPromise());
+            ctx.flush();
+        }
+    }
+
+    /**
+     * @return {@code true} if the PING ACK answered a window probe
+     */
+    public boolean onPingAck(ChannelHandlerContext ctx, ByteBuf data) throws Http2Exception {
+        if (!probing || data.readableBytes() != 8 || data.getLong(data.readerIndex()) != PROBE_PING_DATA) {
+            return false;
+        }
+        probing = false;
+
+        final int window = Math.min(streamWindow, connectionWindow);
+        if (window >= MAX_WINDOW || probeBytes * 3 < window * 2L) {
+            return true;
+        }
+
+        final int target = (int) Math.min(MAX_WINDOW, Math.max(probeBytes * 2, window * 2L));
+        if (log.isDebugEnabled()) {
+            log.debug("Bandwidth-delay product " + probeBytes + " bytes, growing windows to " + target);
+        }
+        growConnectionWindow(ctx, target);
+        if (target > streamWindow) {
+            streamWindow = target;
+            Http2Settings settings = new Http2Settings();
+            settings.initialWindowSize(target);
+            // Applied to the local flow controller by the connection handler once acknowledged
+            handler.encoder().writeSettings(ctx, settings, ctx.newPromise());
+            ctx.flush();
+        }
+        return true;
+    }
+
+    private void growConnectionWindow(ChannelHandlerContext ctx, int size) throws Http2Exception {
+        if (size <= connectionWindow) {
+            return;
+        }
+        Http2Connection connection = handler.connection();
+        connection.local().flowController().incrementWindowSize(ctx, connection.connectionStream(),
+            size - connectionWindow);
+        connectionWindow = size;
+        ctx.flush();
+    }
+}
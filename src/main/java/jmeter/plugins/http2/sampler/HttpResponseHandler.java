@@ -18,31 +18,56 @@
  */
 package jmeter.plugins.http2.sampler;
 
-import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http2.HttpUtil;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
 import io.netty.util.CharsetUtil;
 
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Process {@link FullHttpResponse} translated from HTTP/2 frames
+ * Process {@link Http2Response}s completed by the {@link Http2ResponseListener}
+ *
+ * A connection may be shared by several sampler threads, so the stream map is safe for concurrent
+ * use. Each response carries its own promise, so frames and completions cost a single lookup.
  */
-public class HttpResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+public class HttpResponseHandler extends SimpleChannelInboundHandler<Http2Response> {
 
-    private SortedMap<Integer, ChannelPromise> streamidPromiseMap;
-    private SortedMap<Integer, FullHttpResponse> streamidResponseMap;
+    private static final Logger log = LoggingManager.getLoggerForClass();
 
-    public HttpResponseHandler() {
-        streamidPromiseMap = new TreeMap<Integer, ChannelPromise>();
-        streamidResponseMap = new TreeMap<Integer, FullHttpResponse>();
+    private final boolean dumpBodies;
+    private final ConcurrentMap<Integer, Http2Response> streams;
+    private Http2ConnectionHandler connectionHandler;
+    private volatile ChannelHandlerContext ctx;
+
+    /**
+     * @param dumpBodies {@code true} to log the retained part of every response body
+     */
+    public HttpResponseHandler(boolean dumpBodies) {
+        this.dumpBodies = dumpBodies;
+        streams = new ConcurrentHashMap<Integer, Http2Response>();
+    }
+
+    /**
+     * @param connectionHandler Writes the RST_STREAM frames of cancelled streams
+     */
+    void connectionHandler(Http2ConnectionHandler connectionHandler) {
+        this.connectionHandler = connectionHandler;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        super.handlerAdded(ctx);
     }
 
     /**
@@ -50,64 +75,168 @@ public class HttpResponseHandler extends SimpleChannelInboundHandler<FullHttpRes
      *
      * @param streamId The stream for which a response is expected
      * @param promise The promise object that will be used to wait/notify events
-     * @return The previous object associated with {@code streamId}
-     * @see HttpResponseHandler#awaitResponses(long, TimeUnit)
+     * @param response The response to fill as frames of {@code streamId} arrive
+     * @return The previous response associated with {@code streamId}
+     * @see Http2ResponseTracker
+     */
+    public Http2Response put(int streamId, ChannelPromise promise, Http2Response response) {
+        response.promise(promise);
+        return streams.put(streamId, response);
+    }
+
+    /**
+     * @param streamId The stream a frame was received on
+     * @return The response registered for {@code streamId}, or {@code null} if none is expected
      */
-    public ChannelPromise put(int streamId, ChannelPromise promise) {
-        return streamidPromiseMap.put(streamId, promise);
+    public Http2Response response(int streamId) {
+        return streams.get(streamId);
     }
 
     /**
-     * Wait (sequentially) for a time duration for each anticipated response
+     * Forget about a stream once its response has been consumed
      *
-     * @param timeout Value of time to wait for each response
+     * @param streamId The stream registered with {@link #put(int, ChannelPromise, Http2Response)}
+     * @return The response registered for {@code streamId}
+     */
+    public Http2Response remove(int streamId) {
+        return streams.remove(streamId);
+    }
+
+    /**
+     * @return Streams whose response is still awaited
+     */
+    public int pending() {
+        return streams.size();
+    }
+
+    /**
+     * Give up on a stream still waiting for its response: fail the response with {@code cause} and
+     * reset the stream with CANCEL
+     *
+     * The reset makes the server stop counting the stream against SETTINGS_MAX_CONCURRENT_STREAMS,
+     * in line with the slot the caller releases. Both happen on the event loop, ahead of any stream
+     * sent afterwards. A response completing first is left alone.
+     */
+    public void cancel(final int streamId, final Throwable cause) {
+        final Http2Response response = streams.get(streamId);
+        final ChannelHandlerContext context = ctx;
+        if (response == null) {
+            return;
+        }
+        if (connectionHandler == null || context == null) {
+            response.promise().tryFailure(cause);
+            return;
+        }
+        context.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!response.promise().tryFailure(cause) || !context.channel().isActive()) {
+                    return;
+                }
+                final ChannelHandlerContext handlerCtx = context.pipeline().context(connectionHandler);
+                connectionHandler.encoder().writeRstStream(handlerCtx, streamId, Http2Error.CANCEL.code(),
+                    handlerCtx.newPromise());
+                handlerCtx.flush();
+                Http2Metrics.get().resetSent();
+            }
+        });
+    }
+
+    /**
+     * Fail the streams the server announced it will not process, so they can be sent again on another connection
+     *
+     * @param lastStreamId The last stream id of the GOAWAY, client streams above it were refused
+     */
+    public void refuseAbove(int lastStreamId) {
+        for (Http2Response response : streams.values()) {
+            final int streamId = response.streamId();
+            // Only streams opened by the client, pushed streams are not covered by the GOAWAY
+            if (streamId > lastStreamId && (streamId & 1) == 1) {
+                response.promise().tryFailure(refused(streamId, "GOAWAY with last stream id " + lastStreamId));
+            }
+        }
+    }
+
+    /**
+     * @return The failure of a stream the server did not process
+     */
+    static Http2Exception refused(int streamId, String reason) {
+        return new Http2Exception(Http2Error.REFUSED_STREAM, "Stream id " + streamId + " refused by " + reason);
+    }
+
+    /**
+     * @return {@code true} if {@code cause}, or what it wraps, says the server did not process the stream,
+     *         so sending it again is safe
+     */
+    public static boolean isRefused(Throwable cause) {
+        for (Throwable current = cause; current != null; current = current.getCause()) {
+            if (current instanceof Http2Exception && ((Http2Exception) current).error() == Http2Error.REFUSED_STREAM) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for the response of a single stream, leaving other streams of the connection untouched
+     *
+     * @param streamId The stream registered with {@link #put(int, ChannelPromise, Http2Response)}
+     * @param timeout Value of time to wait for the response
      * @param unit Units associated with {@code timeout}
-     * @see HttpResponseHandler#put(int, ChannelPromise)
+     * @return The response received on {@code streamId}
      */
-    public SortedMap<Integer, FullHttpResponse> awaitResponses(long timeout, TimeUnit unit) {
-        Iterator<Entry<Integer, ChannelPromise>> itr = streamidPromiseMap.entrySet().iterator();
-
-        while (itr.hasNext()) {
-            Entry<Integer, ChannelPromise> entry = itr.next();
-            ChannelPromise promise = entry.getValue();
-            if (!promise.awaitUninterruptibly(timeout, unit)) {
-                throw new IllegalStateException("Timed out waiting for response on stream id " + entry.getKey());
+    public Http2Response awaitResponse(int streamId, long timeout, TimeUnit unit) {
+        Http2Response response = streams.get(streamId);
+        if (response == null) {
+            throw new IllegalStateException("No response expected on stream id " + streamId);
+        }
+        try {
+            ChannelPromise promise = response.promise();
+            if (!Http2Await.awaitUninterruptibly(promise, timeout, unit)) {
+                final IllegalStateException timedOut =
+                    new IllegalStateException("Timed out waiting for response on stream id " + streamId);
+                cancel(streamId, timedOut);
+                throw timedOut;
             }
             if (!promise.isSuccess()) {
                 throw new RuntimeException(promise.cause());
             }
-            System.out.println("---Stream id: " + entry.getKey() + " received---");
-            itr.remove();
+            return response;
+        } finally {
+            remove(streamId);
         }
-
-        return streamidResponseMap;
     }
 
     @Override
-    protected void messageReceived(ChannelHandlerContext ctx, FullHttpResponse msg) throws Exception {
-        Integer streamId = msg.headers().getInt(HttpUtil.ExtensionHeaderNames.STREAM_ID.text());
-        if (streamId == null) {
-            System.err.println("HttpResponseHandler unexpected message received: " + msg);
-            return;
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // Fail the streams still in flight instead of letting their samplers run into the timeout
+        for (Http2Response response : streams.values()) {
+            response.promise().tryFailure(new ClosedChannelException());
         }
+        super.channelInactive(ctx);
+    }
 
-        ChannelPromise promise = streamidPromiseMap.get(streamId);
-        if (promise == null) {
-            System.err.println("Message received for unknown stream id " + streamId);
+    @Override
+    protected void messageReceived(ChannelHandlerContext ctx, Http2Response msg) throws Exception {
+        int streamId = msg.streamId();
+        msg.end();
+        ChannelPromise promise = msg.promise();
+        if (promise == null || streams.get(streamId) != msg) {
+            if (log.isDebugEnabled()) {
+                log.debug("Message received for unknown stream id " + streamId);
+            }
+        } else if (msg.isReset() && msg.resetErrorCode() == Http2Error.REFUSED_STREAM.code()) {
+            promise.tryFailure(refused(streamId, "RST_STREAM"));
+        } else if (msg.isReset()) {
+            promise.tryFailure(new IllegalStateException(
+                "Stream id " + streamId + " reset with error code " + msg.resetErrorCode()));
         } else {
-            // Do stuff with the message (for now just print it)
-            ByteBuf content = msg.content();
-            if (content.isReadable()) {
-                int contentLength = content.readableBytes();
-                byte[] arr = new byte[contentLength];
-                content.readBytes(arr);
-                System.out.println(new String(arr, 0, contentLength, CharsetUtil.UTF_8));
+            if (dumpBodies) {
+                byte[] arr = msg.body();
+                log.info("Stream id " + streamId + " body:\n" + new String(arr, 0, arr.length, CharsetUtil.UTF_8));
             }
 
-            promise.setSuccess();
-
-            // Set result
-            streamidResponseMap.put(streamId, msg);
+            promise.trySuccess();
         }
     }
 }
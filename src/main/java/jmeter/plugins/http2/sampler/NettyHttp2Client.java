@@ -15,188 +15,1107 @@
  */
 package jmeter.plugins.http2.sampler;
 
-import java.net.URI;
-import java.net.URL;
-import java.net.MalformedURLException;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
-import java.util.SortedMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.SSLException;
-
-import org.apache.jmeter.protocol.http.control.Header;
+import org.apache.jmeter.assertions.AssertionResult;
 import org.apache.jmeter.protocol.http.control.HeaderManager;
 import org.apache.jmeter.samplers.SampleResult;
-import org.apache.jmeter.testelement.property.CollectionProperty;
-import org.apache.jmeter.testelement.property.PropertyIterator;
-
-import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import org.apache.jmeter.threads.JMeterVariables;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderValues;
-import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2Settings;
 import io.netty.util.AsciiString;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
 
-import io.netty.handler.ssl.ApplicationProtocolConfig;
-import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
-import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
-import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
-import io.netty.handler.ssl.ApplicationProtocolNames;
-import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.SslProvider;
-import io.netty.handler.ssl.SupportedCipherSuiteFilter;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
-
-import static io.netty.handler.codec.http.HttpMethod.*;
-import static io.netty.handler.codec.http.HttpVersion.*;
 
 public class NettyHttp2Client {
+    private static final long RESPONSE_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Receives the outcome of {@link NettyHttp2Client#requestAsync(Callback)}
+     */
+    public interface Callback {
+        /**
+         * Called on an event loop thread, must not block
+         *
+         * @param client The client which sent the request
+         * @param sampleResult The result prepared for the request, not yet filled
+         * @param response The response received, {@code null} if the request failed
+         * @param cause The failure, {@code null} on success
+         */
+        void completed(NettyHttp2Client client, SampleResult sampleResult, Http2Response response, Throwable cause);
+    }
+
     private final String method;
+    private final boolean headOnly;
     private final String host;
     private final int port;
     private final String path;
     private final HeaderManager headerManager;
 
-    private Bootstrap b;
+    private boolean cleartext;
+    private boolean priorKnowledge;
+    private boolean sharedConnections;
+    private boolean forceFullHandshake;
+    private int maxRetainedBodyBytes = -1;
+    private String bodyDigestAlgorithm;
+    private String expectedBodyDigest;
+    private boolean debug;
+    private Http2Settings settings;
+    private int connectionWindowSize;
+    private boolean autoTuneWindow;
+    private boolean tcpNoDelay = true;
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    private boolean tcpQuickAck;
+    private RequestBody body;
+    private RequestTemplate template;
+    private String sensitiveHeaders;
+    private int encoderTableSize = -1;
+    private boolean hpackStats;
+    private long pushSizeLimit = -1;
+    private boolean summaryOnly;
+    private long pingInterval;
+    private long pingTimeout = Http2Pinger.DEFAULT_TIMEOUT_MS;
+    private boolean measurePingRtt;
+    private long pingRttMicros = -1;
+
+    private final Http2Timings timings = new Http2Timings();
+    private final Http2HeaderStats headerStats = new Http2HeaderStats();
+    private final Http2PushStats pushStats = new Http2PushStats();
+    private final Http2StreamOrder streamOrder = new Http2StreamOrder();
+
+    private Http2ConnectionConfig config;
+    private MessageDigest digest;
 
     public NettyHttp2Client(String method, String host, int port, String path, HeaderManager headerManager) {
         this.method = method;
+        this.headOnly = "HEAD".equalsIgnoreCase(method);
         this.host = host;
         this.port = port;
         this.path = path;
         this.headerManager = headerManager;
     }
 
+    /**
+     * @param cleartext {@code true} for h2c, {@code false} for HTTP/2 over TLS
+     * @param priorKnowledge {@code true} to start cleartext connections with the HTTP/2 preface instead of
+     *                       an HTTP/1.1 Upgrade request, ignored over TLS
+     */
+    public void setCleartext(boolean cleartext, boolean priorKnowledge) {
+        this.cleartext = cleartext;
+        this.priorKnowledge = priorKnowledge;
+    }
+
+    /**
+     * @param sharedConnections {@code true} to multiplex onto connections shared by all threads
+     */
+    public void setSharedConnections(boolean sharedConnections) {
+        this.sharedConnections = sharedConnections;
+    }
+
+    /**
+     * @param forceFullHandshake {@code true} to prevent TLS session resumption on new connections
+     */
+    public void setForceFullHandshake(boolean forceFullHandshake) {
+        this.forceFullHandshake = forceFullHandshake;
+    }
+
+    /**
+     * @param maxRetainedBodyBytes Number of body bytes kept as response data, negative to keep all
+     */
+    public void setMaxRetainedBodyBytes(int maxRetainedBodyBytes) {
+        this.maxRetainedBodyBytes = maxRetainedBodyBytes;
+    }
+
+    /**
+     * @param bodyDigestAlgorithm {@link MessageDigest} algorithm computed over the whole body, empty for none
+     * @param expectedBodyDigest Hex digest the body must match, empty to skip the check
+     */
+    public void setBodyDigest(String bodyDigestAlgorithm, String expectedBodyDigest) {
+        this.bodyDigestAlgorithm = bodyDigestAlgorithm;
+        this.expectedBodyDigest = expectedBodyDigest;
+    }
+
+    /**
+     * @param summaryOnly {@code true} if successful results only feed an aggregate, so their response
+     *                    headers and data are not needed
+     */
+    public void setSummaryOnly(boolean summaryOnly) {
+        this.summaryOnly = summaryOnly;
+    }
+
+    /**
+     * @param debug {@code true} to log frames and response bodies of the connections used
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * @param settings SETTINGS sent by new connections, {@code null} for the defaults
+     */
+    public void setSettings(Http2Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @param connectionWindowSize Connection-level receive window of new connections, 0 for the protocol default
+     * @param autoTuneWindow {@code true} to grow the receive windows with the measured bandwidth-delay product
+     */
+    public void setFlowControl(int connectionWindowSize, boolean autoTuneWindow) {
+        this.connectionWindowSize = connectionWindowSize;
+        this.autoTuneWindow = autoTuneWindow;
+    }
+
+    /**
+     * @param tcpNoDelay {@code false} to let Nagle's algorithm coalesce small writes
+     * @param receiveBufferSize SO_RCVBUF of new connections, 0 or less for the OS default
+     * @param sendBufferSize SO_SNDBUF of new connections, 0 or less for the OS default
+     * @param tcpQuickAck {@code true} to set TCP_QUICKACK where the transport supports it
+     */
+    public void setSocketOptions(boolean tcpNoDelay, int receiveBufferSize, int sendBufferSize, boolean tcpQuickAck) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+        this.tcpQuickAck = tcpQuickAck;
+    }
+
+    /**
+     * @param body The body sent with every request, {@code null} for none
+     */
+    public void setBody(RequestBody body) {
+        this.body = body;
+    }
+
+    /**
+     * @param encoderTableSize Upper bound of the HPACK encoder's dynamic table, negative for the size the server allows
+     * @param sensitiveHeaders Comma separated names of headers HPACK must never index
+     * @param hpackStats {@code true} to scan every header block for the header list sizes and dynamic table
+     *                   counters, otherwise only the encoded sizes are known
+     */
+    public void setHpack(int encoderTableSize, String sensitiveHeaders, boolean hpackStats) {
+        this.encoderTableSize = encoderTableSize;
+        this.sensitiveHeaders = sensitiveHeaders;
+        this.hpackStats = hpackStats;
+    }
+
+    /**
+     * @param template The precompiled parts of the request, compiled on first use if {@code null}
+     *                 or not matching the method, host, port and headers of this client
+     */
+    public void setTemplate(RequestTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * @param pushSizeLimit Size in bytes above which pushed responses are cancelled, negative to accept any
+     *                      size. Push itself is enabled by the SETTINGS.
+     */
+    public void setPushSizeLimit(long pushSizeLimit) {
+        this.pushSizeLimit = pushSizeLimit;
+    }
+
+    /**
+     * @param pingInterval Milliseconds between keep-alive PINGs on new connections, 0 or less for none
+     * @param pingTimeout Milliseconds a PING may stay unanswered before its connection is closed, 0 or less
+     *                    to wait forever
+     * @param measurePingRtt {@code true} to ping the connection after every request and add the round trip
+     *                       as a sub-result
+     */
+    public void setPing(long pingInterval, long pingTimeout, boolean measurePingRtt) {
+        this.pingInterval = pingInterval;
+        this.pingTimeout = pingTimeout;
+        this.measurePingRtt = measurePingRtt;
+    }
+
+    /**
+     * @return The phases of the request, filled once it has completed
+     */
+    public Http2Timings timings() {
+        return timings;
+    }
+
+    /**
+     * @return The header sizes of the request, filled once it has completed
+     */
+    public Http2HeaderStats headerStats() {
+        return headerStats;
+    }
+
+    /**
+     * @return What server push delivered, filled once the request has completed
+     */
+    public Http2PushStats pushStats() {
+        return pushStats;
+    }
+
+    /**
+     * @return The order the streams of a multi-stream request completed in, filled once it has completed
+     */
+    public Http2StreamOrder streamOrder() {
+        return streamOrder;
+    }
+
+    /**
+     * Publish the timings, header sizes, push counters and stream order as variables of the current JMeter thread
+     */
+    public void exportVariables(JMeterVariables variables) {
+        timings.export(variables);
+        headerStats.export(variables);
+        pushStats.export(variables);
+        streamOrder.export(variables);
+        if (measurePingRtt) {
+            variables.put(Http2Pinger.RTT_VARIABLE, String.valueOf(pingRttMicros));
+        }
+    }
+
+    /**
+     * Open connections for the samples to come and warm them up with unmeasured requests, once per
+     * server and test
+     *
+     * The requests go through the whole client path, so the JIT compiles the codec and every
+     * connection's HPACK tables hold the request headers before the first measured sample. The
+     * connections are then left to the pool, with their setup timings dropped.
+     *
+     * @param connections Connections to open
+     * @param requests Requests to send on each of them
+     * @return The number of connections opened, 0 if the server was already warmed up
+     * @throws Exception if a connection could not be established or a request failed
+     */
+    public int warmUp(final int connections, final int requests) throws Exception {
+        SampleResult failure = new SampleResult();
+        if (!prepare(failure)) {
+            throw new IllegalStateException(failure.getResponseMessage());
+        }
+        final Http2ConnectionManager.ConnectionWarmer warmer = new Http2ConnectionManager.ConnectionWarmer() {
+            @Override
+            public void warm(Http2ClientConnection connection) throws Exception {
+                connection.takeSetupTimings();
+                for (int i = 0; i < requests; i++) {
+                    // Nothing of the body is kept or digested
+                    final Http2Response response = new Http2Response(0, null);
+                    if (!connection.reserveStream()) {
+                        throw new IllegalStateException("Warm-up connection to " + connection.key()
+                            + " accepts no stream");
+                    }
+                    try {
+                        final int streamId = connection.send(newRequest(path), response);
+                        connection.responseHandler().awaitResponse(streamId, RESPONSE_TIMEOUT_SECONDS,
+                            TimeUnit.SECONDS);
+                    } finally {
+                        connection.releaseStream();
+                    }
+                }
+            }
+        };
+        return Http2ConnectionManager.warmUpOnce(config.key(), new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return Http2ConnectionManager.warmUp(config, sharedConnections, connections, warmer);
+            }
+        });
+    }
+
+    /**
+     * Send the request and block until its response has been received
+     *
+     * A request the server refused without processing it, by GOAWAY or REFUSED_STREAM, is sent
+     * once more on another connection.
+     */
     public SampleResult request() {
         SampleResult sampleResult = new SampleResult();
-
-        final SslContext sslCtx = getSslContext();
-        if (sslCtx == null) {
-            sampleResult.setSuccessful(false);
+        if (!prepare(sampleResult)) {
             return sampleResult;
         }
 
-        // Configure the client.
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        Http2ClientInitializer initializer = new Http2ClientInitializer(sslCtx, Integer.MAX_VALUE);
-        Bootstrap b = new Bootstrap();
-        b.group(workerGroup);
-        b.channel(NioSocketChannel.class);
-        b.option(ChannelOption.SO_KEEPALIVE, true);
-        b.remoteAddress(host, port);
-        b.handler(initializer);
-
         // Start sampling
         sampleResult.sampleStart();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RESPONSE_TIMEOUT_SECONDS);
 
-        // Start the client.
-        Channel channel = b.connect().syncUninterruptibly().channel();
-
-        // Wait for the HTTP/2 upgrade to occur.
-        Http2SettingsHandler http2SettingsHandler = initializer.settingsHandler();
+        // Reuse an established connection if possible
+        Http2ClientConnection connection;
         try {
-            http2SettingsHandler.awaitSettings(5, TimeUnit.SECONDS);
+            connection = Http2ConnectionManager.acquire(config, sharedConnections);
         } catch(Exception exception) {
+            sampleResult.sampleEnd();
             sampleResult.setSuccessful(false);
+            sampleResult.setResponseMessage(exception.toString());
             return sampleResult;
         }
+        timings.connection(System.currentTimeMillis() - sampleResult.getStartTime(), connection.takeSetupTimings());
+        sampleResult.setConnectTime(timings.acquire());
 
-        HttpResponseHandler responseHandler = initializer.responseHandler();
-        final int streamId = 3;
-        final URI hostName = URI.create("https://" + host + ':' + port);
-
-        // Set attributes to SampleResult
+        Http2Response response = newResponse(digest);
         try {
-            sampleResult.setURL(new URL(hostName.toString()));
-        } catch (MalformedURLException exception) {
+            try {
+                // Built right before sending, its body is a pooled buffer released once written
+                exchange(connection, newRequest(path), response);
+            } catch(Exception exception) {
+                if (!HttpResponseHandler.isRefused(exception)) {
+                    throw exception;
+                }
+                connection = Http2ConnectionManager.acquire(config, sharedConnections);
+                // Set up within the sample, but not the connection the sample was timed on
+                connection.takeSetupTimings();
+                response = newResponse(digest);
+                exchange(connection, newRequest(path), response);
+            }
+        } catch(Exception exception) {
+            sampleResult.sampleEnd();
             sampleResult.setSuccessful(false);
+            sampleResult.setResponseMessage(exception.toString());
             return sampleResult;
         }
+        awaitPushes(Collections.singletonList(response), deadline);
+
+        // End sampling at the last frame handled on the event loop, not when this thread woke up
+        sampleResult.setStampAndTime(sampleResult.getStartTime(), response.endTime() - sampleResult.getStartTime());
+        sampleResult.setLatency(response.firstByteTime() - sampleResult.getStartTime());
+        complete(sampleResult, response);
+        if (measurePingRtt) {
+            addPingResult(sampleResult, connection);
+        }
+
+        return sampleResult;
+    }
+
+    /**
+     * Send {@code fullRequest} on a stream slot reserved on {@code connection}, wait for its response and release the slot
+     */
+    private static void exchange(Http2ClientConnection connection, FullHttpRequest fullRequest, Http2Response response) {
+        try {
+            final int streamId = connection.send(fullRequest, response);
+            connection.responseHandler().awaitResponse(streamId, RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            Http2ConnectionManager.release(connection);
+        }
+    }
+
+    /**
+     * Send one request per path concurrently, as separate streams of a single connection
+     *
+     * Streams beyond the server's SETTINGS_MAX_CONCURRENT_STREAMS are sent as soon as earlier
+     * ones complete. Every stream becomes a sub-result, timed from its own send to the last frame
+     * of its response, so head-of-line effects between the streams stay visible. Streams the
+     * server refused without processing them are sent once more on another connection.
+     *
+     * @param paths The path of each stream, the same path may appear several times
+     * @return A result spanning all streams, successful only if every stream is
+     */
+    public SampleResult requestStreams(List<String> paths) {
+        return requestStreams(paths, null);
+    }
+
+    /**
+     * Send one request per path concurrently, each with its priority
+     *
+     * Besides the sub-results, the order the streams completed in and the time until the critical
+     * ones had completed are recorded in {@link #streamOrder()}.
+     *
+     * @param paths The path of each stream, the same path may appear several times
+     * @param priorities The priority of each stream, {@code null} to send them without priority
+     * @return A result spanning all streams, successful only if every stream is
+     * @see #requestStreams(List)
+     */
+    public SampleResult requestStreams(List<String> paths, List<Http2Priority> priorities) {
+        SampleResult parent = new SampleResult();
+        if (!prepare(parent)) {
+            return parent;
+        }
+
+        parent.sampleStart();
+        // One deadline for the whole sample, however many streams it has to wait for
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RESPONSE_TIMEOUT_SECONDS);
+
+        final Http2ClientConnection connection;
+        try {
+            connection = Http2ConnectionManager.acquire(config, sharedConnections);
+        } catch(Exception exception) {
+            parent.sampleEnd();
+            parent.setSuccessful(false);
+            parent.setResponseMessage(exception.toString());
+            return parent;
+        }
+        timings.connection(System.currentTimeMillis() - parent.getStartTime(), connection.takeSetupTimings());
+        parent.setConnectTime(timings.acquire());
+
+        final List<Stream> streams = new ArrayList<Stream>(paths.size());
+        for (String streamPath : paths) {
+            Stream stream = new Stream(streamPath);
+            if (priorities != null) {
+                stream.priority = priorities.get(streams.size());
+            }
+            streams.add(stream);
+        }
+        final AtomicInteger completions = new AtomicInteger();
+        sendStreams(connection, streams, true, completions, deadline);
+
+        final List<Stream> refused = new ArrayList<Stream>();
+        for (Stream stream : streams) {
+            if (stream.isRefused()) {
+                refused.add(stream);
+            }
+        }
+        if (!refused.isEmpty()) {
+            Http2ClientConnection retryConnection = null;
+            try {
+                retryConnection = Http2ConnectionManager.acquire(config, sharedConnections);
+                retryConnection.takeSetupTimings();
+            } catch(Exception exception) {
+                // The refused streams keep their failure
+            }
+            if (retryConnection != null) {
+                // The streams they depended on are on the other connection
+                sendStreams(retryConnection, refused, false, completions, deadline);
+            }
+        }
+
+        final List<Http2Response> responses = new ArrayList<Http2Response>(streams.size());
+        for (Stream stream : streams) {
+            responses.add(stream.response);
+        }
+        awaitPushes(responses, deadline);
+        parent.sampleEnd();
+
+        int failed = 0;
+        for (Stream stream : streams) {
+            stream.finish();
+            if (!stream.result.isSuccessful()) {
+                failed++;
+            }
+            parent.addSubResult(stream.result);
+        }
+        parent.setSuccessful(failed == 0);
+        if (failed == 0) {
+            parent.setResponseCodeOK();
+        }
+        parent.setResponseMessage(streams.size() + " streams, " + failed + " failed");
+        recordStreamOrder(parent, streams, paths.get(0));
+        if (measurePingRtt) {
+            addPingResult(parent, connection);
+        }
 
-        FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, GET, path);
-        request.headers().addObject(HttpHeaderNames.HOST, hostName);
+        return parent;
+    }
 
-        // Add request headers set by HeaderManager
-        if (headerManager != null) {
-            CollectionProperty headers = headerManager.getHeaders();
-            if (headers != null) {
-                PropertyIterator i = headers.iterator();
-                while (i.hasNext()) {
-                    org.apache.jmeter.protocol.http.control.Header header
-                        = (org.apache.jmeter.protocol.http.control.Header) i.next().getObjectValue();
-                    request.headers().add(header.getName(), header.getValue());
+    /**
+     * Send {@code streams} on {@code connection}, whose first stream slot is already reserved, and wait for them
+     *
+     * Streams beyond the slots available are sent as earlier ones complete. The slot of every
+     * stream sent is released as it completes, the others are released right away.
+     *
+     * @param withDependencies {@code true} to resolve the dependencies of the priorities, {@code false}
+     *                         to make every stream depend on the root
+     */
+    private void sendStreams(Http2ClientConnection connection, List<Stream> streams, boolean withDependencies,
+            AtomicInteger completions, long deadline) {
+        final Http2ResponseTracker tracker = new Http2ResponseTracker();
+        boolean reserved = true;
+        for (int i = 0; i < streams.size(); i++) {
+            final Stream stream = streams.get(i);
+            if (!reserved) {
+                reserved = connection.reserveStream();
+                if (!reserved && connection.isUsable()) {
+                    // Counted once, however many times the stream tries again
+                    Http2Metrics.get().streamRefused();
+                }
+            }
+            // Every finished stream frees a slot, unless another thread grabbed it first on a shared connection
+            while (!reserved && tracker.inFlight() > 0 && tracker.awaitAny(deadline)) {
+                reserved = connection.reserveStream();
+            }
+            if (!reserved) {
+                if (connection.isUsable()) {
+                    stream.fail(new IllegalStateException("No stream available on connection to " + connection.key()));
+                } else {
+                    // Typically after a GOAWAY, the stream was not sent at all
+                    stream.refuse();
                 }
+                continue;
+            }
+
+            reserved = false;
+            if (send(connection, stream, withDependencies ? streamDependency(streams, i) : 0, completions)) {
+                tracker.track(stream.response.promise());
+            } else {
+                Http2ConnectionManager.release(connection);
+            }
+        }
+        if (reserved) {
+            Http2ConnectionManager.release(connection);
+        }
+
+        tracker.seal();
+        tracker.awaitAll(deadline);
+    }
+
+    /**
+     * @param streams The streams of the sample, those before {@code index} sent already
+     * @param index Position of the stream about to be sent
+     * @return The id of the stream the stream at {@code index} depends on, 0 for the root
+     */
+    private static int streamDependency(List<Stream> streams, int index) {
+        final Http2Priority priority = streams.get(index).priority;
+        if (priority == null) {
+            return 0;
+        }
+        if (priority.dependency() == Http2Priority.LATEST_HEAVIER) {
+            for (int i = index - 1; i >= 0; i--) {
+                final Stream earlier = streams.get(i);
+                if (earlier.isSent() && earlier.priority != null && earlier.priority.weight() >= priority.weight()) {
+                    return earlier.response.streamId();
+                }
+            }
+            return 0;
+        }
+        if (priority.dependency() >= 0 && priority.dependency() < index && streams.get(priority.dependency()).isSent()) {
+            return streams.get(priority.dependency()).response.streamId();
+        }
+        return 0;
+    }
+
+    /**
+     * Record the order the streams completed in, and when the critical ones had
+     *
+     * @param mainPath The path of the streams that are critical when no priority marks any
+     */
+    private void recordStreamOrder(SampleResult parent, List<Stream> streams, String mainPath) {
+        boolean anyCritical = false;
+        for (Stream stream : streams) {
+            anyCritical |= stream.priority != null && stream.priority.isCritical();
+        }
+        final List<Stream> completed = new ArrayList<Stream>(streams);
+        Collections.sort(completed, new Comparator<Stream>() {
+            @Override
+            public int compare(Stream a, Stream b) {
+                return Integer.compare(a.completion, b.completion);
+            }
+        });
+        streamOrder.reset(parent.getStartTime());
+        for (Stream stream : completed) {
+            final boolean critical = anyCritical ? stream.priority.isCritical() : stream.path.equals(mainPath);
+            if (stream.result.isSuccessful() && stream.completion > 0) {
+                streamOrder.completed(stream.path, stream.response.endTime(), critical);
+            } else {
+                streamOrder.failed(critical);
             }
         }
+    }
 
-        channel.writeAndFlush(request);
-        responseHandler.put(streamId, channel.newPromise());
+    /**
+     * Send the request of one stream on a slot already reserved on {@code connection}
+     *
+     * Once the stream is over its slot is released from the event loop, so that the sampler
+     * thread can send the next stream as soon as the server allows it.
+     *
+     * @param streamDependency Id of the stream the stream depends on, ignored without priority
+     * @param completions Counts the streams of the sample completed so far
+     * @return {@code false} if the stream failed before being sent
+     */
+    private boolean send(final Http2ClientConnection connection, final Stream stream, int streamDependency,
+            final AtomicInteger completions) {
+        final MessageDigest streamDigest;
+        try {
+            streamDigest = newDigest();
+        } catch (NoSuchAlgorithmException exception) {
+            stream.fail(exception);
+            return false;
+        }
 
-        final SortedMap<Integer, FullHttpResponse> responseMap;
+        stream.refused = false;
+        stream.connection = connection;
+        stream.response = newResponse(streamDigest);
+        if (stream.priority != null) {
+            stream.response.priority(streamDependency, stream.priority.weight(), stream.priority.isExclusive());
+        }
+        if (stream.startTime == 0) {
+            // A stream sent again keeps the time of its first attempt
+            stream.startTime = System.currentTimeMillis();
+        }
+        final int streamId;
         try {
-            responseMap = responseHandler.awaitResponses(5, TimeUnit.SECONDS);
-
-            // Currently pick up only one response of a stream
-            final FullHttpResponse response = responseMap.get(streamId);
-            final AsciiString responseCode = response.status().codeAsText();
-            final AsciiString reasonPhrase = response.status().reasonPhrase();
-            sampleResult.setResponseCode(new StringBuilder(responseCode.length()).append(responseCode).toString());
-            sampleResult.setResponseMessage(new StringBuilder(reasonPhrase.length()).append(reasonPhrase).toString());
-            sampleResult.setResponseHeaders(getResponseHeaders(response));
+            streamId = connection.send(newRequest(stream.path), stream.response);
         } catch(Exception exception) {
-            sampleResult.setSuccessful(false);
-            return sampleResult;
+            stream.fail(exception);
+            return false;
         }
 
-        // Wait until the connection is closed.
-        channel.close().syncUninterruptibly();
+        stream.response.promise().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    stream.completion = completions.incrementAndGet();
+                }
+                connection.responseHandler().remove(streamId);
+                Http2ConnectionManager.release(connection);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * One stream of {@link #requestStreams(List, List)}
+     */
+    private final class Stream {
+        private final String path;
+        private final SampleResult result = new SampleResult();
+        private Http2Priority priority;
+        private Http2Response response;
+        private Http2ClientConnection connection;
+        private long startTime;
+        // Rank among the streams of the sample that completed, set on the event loop
+        private volatile int completion;
+        // Not sent because the connection stopped accepting streams
+        private boolean refused;
+
+        Stream(String path) {
+            this.path = path;
+            result.setSampleLabel(path);
+            result.setURL(template.url(path));
+        }
+
+        boolean isSent() {
+            return response != null && response.streamId() > 0;
+        }
+
+        /**
+         * @return {@code true} if the server did not process the stream, so it can be sent again
+         */
+        boolean isRefused() {
+            if (refused) {
+                return true;
+            }
+            final ChannelPromise promise = response != null ? response.promise() : null;
+            return promise != null && promise.isDone() && HttpResponseHandler.isRefused(promise.cause());
+        }
+
+        void refuse() {
+            refused = true;
+            fail(new IllegalStateException("Connection stopped accepting streams before stream " + path + " was sent"));
+        }
+
+        /**
+         * Fill the result once the sample deadline has passed or every stream has finished
+         */
+        void finish() {
+            if (response == null || response.promise() == null) {
+                // Failed before being sent
+                return;
+            }
+            final ChannelPromise promise = response.promise();
+            if (!promise.isDone()) {
+                final IllegalStateException timedOut =
+                    new IllegalStateException("Timed out waiting for response on stream id " + response.streamId());
+                // Reset, so the server frees the slot the stream released
+                connection.responseHandler().cancel(response.streamId(), timedOut);
+                Http2Await.awaitUninterruptibly(promise, RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                promise.tryFailure(timedOut);
+            }
+            if (promise.isSuccess()) {
+                // Both times were taken on the event loop
+                result.setStampAndTime(startTime, response.endTime() - startTime);
+                result.setLatency(response.firstByteTime() - startTime);
+                complete(result, response);
+            } else {
+                fail(promise.cause());
+            }
+        }
+
+        void fail(Throwable cause) {
+            final long now = System.currentTimeMillis();
+            if (startTime == 0) {
+                startTime = now;
+            }
+            result.setStampAndTime(startTime, now - startTime);
+            result.setSuccessful(false);
+            result.setResponseMessage(cause.toString());
+        }
+    }
+
+    /**
+     * Send the request without waiting for its response
+     *
+     * The calling thread only blocks if a new connection has to be established. The callback is
+     * invoked on an event loop thread and must not block; it is expected to hand the result over
+     * to a sampler thread, which then calls {@link #complete(SampleResult, Http2Response)}.
+     *
+     * @param callback Notified once the response has been received or the request failed
+     */
+    public void requestAsync(final Callback callback) {
+        final SampleResult sampleResult = new SampleResult();
+        if (!prepare(sampleResult)) {
+            callback.completed(this, sampleResult, null, new IllegalStateException(sampleResult.getResponseMessage()));
+            return;
+        }
+
+        final long acquireStart = System.currentTimeMillis();
+        final Http2ClientConnection connection;
+        try {
+            connection = Http2ConnectionManager.acquire(config, sharedConnections);
+        } catch(Exception exception) {
+            callback.completed(this, sampleResult, null, exception);
+            return;
+        }
+        timings.connection(System.currentTimeMillis() - acquireStart, connection.takeSetupTimings());
+
+        final Http2Response response = newResponse(digest);
+        final HttpResponseHandler responseHandler = connection.responseHandler();
+        final int streamId;
+        try {
+            streamId = connection.send(newRequest(path), response);
+        } catch(Exception exception) {
+            Http2ConnectionManager.release(connection);
+            callback.completed(this, sampleResult, null, exception);
+            return;
+        }
+
+        final ChannelPromise promise = response.promise();
+        // Runs on the event loop of the connection, the one adding pushed responses
+        final ScheduledFuture<?> timeout = connection.channel().eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                responseHandler.cancel(streamId,
+                    new IllegalStateException("Timed out waiting for response on stream id " + streamId));
+                for (Http2Response pushed : response.pushes()) {
+                    pushed.promise().tryFailure(new IllegalStateException(
+                        "Timed out waiting for pushed stream id " + pushed.streamId()));
+                }
+            }
+        }, RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        promise.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                responseHandler.remove(streamId);
+                Http2ConnectionManager.release(connection);
+                final List<Http2Response> pushes = response.pushes();
+                if (!future.isSuccess() || pushes.isEmpty()) {
+                    timeout.cancel(false);
+                    callback.completed(NettyHttp2Client.this, sampleResult, response,
+                        future.isSuccess() ? null : future.cause());
+                    return;
+                }
+
+                // Pushed responses belong to the sample, the timeout keeps running for them
+                final AtomicInteger pending = new AtomicInteger(pushes.size());
+                final ChannelFutureListener pushListener = new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture pushFuture) {
+                        if (pending.decrementAndGet() == 0) {
+                            timeout.cancel(false);
+                            callback.completed(NettyHttp2Client.this, sampleResult, response, null);
+                        }
+                    }
+                };
+                for (Http2Response pushed : pushes) {
+                    pushed.promise().addListener(pushListener);
+                }
+            }
+        });
+    }
 
-        // End sampling
-        sampleResult.sampleEnd();
+    /**
+     * Wait until the responses pushed along with {@code responses} have completed or the deadline has passed
+     *
+     * @param responses Responses of the sample, those not successfully completed are skipped
+     */
+    private static void awaitPushes(List<Http2Response> responses, long deadline) {
+        Http2ResponseTracker tracker = null;
+        for (Http2Response response : responses) {
+            if (response == null || response.promise() == null || !response.promise().isSuccess()) {
+                continue;
+            }
+            for (Http2Response pushed : response.pushes()) {
+                if (tracker == null) {
+                    tracker = new Http2ResponseTracker();
+                }
+                tracker.track(pushed.promise());
+            }
+        }
+        if (tracker != null) {
+            tracker.seal();
+            tracker.awaitAll(deadline);
+        }
+    }
+
+    /**
+     * Fill a sample result from a received response
+     *
+     * @param sampleResult The result to fill, its timing must already have been set
+     * @param response The response received
+     */
+    public void complete(SampleResult sampleResult, Http2Response response) {
         sampleResult.setSuccessful(true);
+        timings.stream(response);
+        headerStats.stream(response);
 
-        return sampleResult;
+        final FullHttpResponse head = response.head();
+        final AsciiString responseCode = head.status().codeAsText();
+        final AsciiString reasonPhrase = head.status().reasonPhrase();
+        sampleResult.setResponseCode(new StringBuilder(responseCode.length()).append(responseCode).toString());
+        sampleResult.setResponseMessage(new StringBuilder(reasonPhrase.length()).append(reasonPhrase).toString());
+        sampleResult.setHeadersSize(response.responseHeaderWireBytes());
+        sampleResult.setBodySize((int) Math.min(response.bodyLength(), Integer.MAX_VALUE));
+
+        final String digestHex = response.digestHex();
+        if (digestHex != null) {
+            checkBodyDigest(sampleResult, digestHex);
+        }
+
+        // Converting the headers costs more than the rest of the result, skip it for results nobody looks at
+        if (!summaryOnly || !sampleResult.isSuccessful()) {
+            sampleResult.setResponseHeaders(getResponseHeaders(head));
+            final CharSequence contentType = head.headers().get(HttpHeaderNames.CONTENT_TYPE);
+            if (contentType != null) {
+                sampleResult.setEncodingAndType(contentType.toString());
+            }
+            sampleResult.setResponseData(response.body());
+        }
+
+        addPushResults(sampleResult, response);
     }
 
-    private SslContext getSslContext() {
-        SslContext sslCtx = null;
+    /**
+     * Add a sub-result per response pushed along with {@code response}
+     *
+     * Pushes still in flight are failed, as their sample is over. A pushed response never fails
+     * the sample it was pushed with, and a cancelled one counts as successful.
+     */
+    private void addPushResults(SampleResult sampleResult, Http2Response response) {
+        for (Http2Response pushed : response.pushes()) {
+            final ChannelPromise promise = pushed.promise();
+            promise.tryFailure(new IllegalStateException("Timed out waiting for pushed stream id " + pushed.streamId()));
 
-        final SslProvider provider = OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK;
+            SampleResult result = new SampleResult();
+            result.setSampleLabel("PUSH " + pushed.pushPath());
+            result.setURL(template.url(pushed.pushPath()));
+            // Timed from the PUSH_PROMISE, the closest thing to a request
+            final long start = pushed.sendTime();
+            if (!promise.isSuccess()) {
+                result.setStampAndTime(start, System.currentTimeMillis() - start);
+                result.setSuccessful(false);
+                result.setResponseMessage(promise.cause().toString());
+                sampleResult.addSubResult(result);
+                continue;
+            }
+
+            result.setStampAndTime(start, pushed.endTime() - start);
+            if (pushed.firstByteTime() > 0) {
+                result.setLatency(pushed.firstByteTime() - start);
+            }
+            result.setSuccessful(true);
+            final FullHttpResponse head = pushed.head();
+            if (head != null) {
+                result.setResponseCode(head.status().codeAsText().toString());
+                result.setResponseMessage(head.status().reasonPhrase().toString());
+                result.setResponseHeaders(getResponseHeaders(head));
+            }
+            if (pushed.isCancelled()) {
+                result.setResponseMessage("Cancelled after " + pushed.bodyLength() + " bytes, over the "
+                    + pushSizeLimit + " bytes limit");
+            }
+            result.setHeadersSize(pushed.responseHeaderWireBytes());
+            result.setBodySize((int) Math.min(pushed.bodyLength(), Integer.MAX_VALUE));
+            sampleResult.addSubResult(result);
+        }
+        pushStats.add(response);
+    }
+
+    /**
+     * Add a sub-result timing a PING on {@code connection}: the network round trip, without the server's
+     * processing time
+     *
+     * The PING is sent once the sample is over and does not extend its time. A PING left
+     * unanswered fails the sub-result only, the connection is closed by its pinger.
+     */
+    private void addPingResult(SampleResult sampleResult, Http2ClientConnection connection) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel("PING");
+        result.setURL(sampleResult.getURL());
+        final long start = System.currentTimeMillis();
+        final Future<Long> ping = connection.ping();
+        Http2Await.awaitUninterruptibly(ping, RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (ping.isSuccess()) {
+            pingRttMicros = ping.getNow();
+            result.setStampAndTime(start, TimeUnit.MICROSECONDS.toMillis(pingRttMicros));
+            result.setLatency(result.getTime());
+            result.setSuccessful(true);
+            result.setResponseCodeOK();
+            result.setResponseMessage("RTT " + pingRttMicros + " us");
+        } else {
+            pingRttMicros = -1;
+            result.setStampAndTime(start, System.currentTimeMillis() - start);
+            result.setSuccessful(false);
+            result.setResponseMessage(ping.cause() != null ? ping.cause().toString() : "Timed out waiting for PING ACK");
+        }
+        // Raw, so the parent keeps its own end time
+        sampleResult.addRawSubResult(result);
+    }
 
+    /**
+     * Build the connection configuration and the request template, reusing those of an earlier client
+     * of this thread as long as nothing they were built from has changed
+     *
+     * Called by {@link #prepare(SampleResult)} if not done already, so the caller can keep the
+     * configuration for the next client.
+     *
+     * @param previous The configuration of an earlier client, {@code null} if none
+     * @return The configuration the requests of this client go through
+     * @throws IOException if the TLS context cannot be built or the server does not form a valid URL
+     * @throws IllegalArgumentException if the method is invalid
+     */
+    public Http2ConnectionConfig configure(Http2ConnectionConfig previous) throws IOException {
+        final SslContext sslCtx = cleartext ? null : SslContextCache.get();
+        if (template == null || !template.matches(method, host, port, !cleartext, headerManager, sensitiveHeaders)) {
+            template = RequestTemplate.compile(method, host, port, !cleartext, headerManager, sensitiveHeaders);
+        }
+        if (previous != null && isCurrent(previous, sslCtx)) {
+            config = previous;
+            return config;
+        }
+
+        config = new Http2ConnectionConfig.Builder(host, port)
+            .sslContext(sslCtx)
+            .priorKnowledge(priorKnowledge)
+            .forceFullHandshake(forceFullHandshake)
+            .debug(debug)
+            .settings(settings)
+            .connectionWindowSize(connectionWindowSize)
+            .autoTuneWindow(autoTuneWindow)
+            .tcpNoDelay(tcpNoDelay)
+            .receiveBufferSize(receiveBufferSize)
+            .sendBufferSize(sendBufferSize)
+            .tcpQuickAck(tcpQuickAck)
+            .encoderTableSize(encoderTableSize)
+            .neverIndexedHeaders(template.neverIndexedHeaders())
+            .hpackStats(hpackStats)
+            .pushSizeLimit(pushSizeLimit)
+            .pingInterval(pingInterval)
+            .pingTimeout(pingTimeout)
+            .build();
+        return config;
+    }
+
+    /**
+     * @return {@code true} if {@code config} is what {@link #configure(Http2ConnectionConfig)} would build
+     */
+    private boolean isCurrent(Http2ConnectionConfig config, SslContext sslCtx) {
+        final boolean sameSettings = settings != null
+            ? config.settings() == settings || config.settings().equals(settings)
+            : config.settings().equals(Http2ConnectionConfig.defaultSettings());
+        return sameSettings && config.port() == port && config.host().equals(host)
+            && config.sslContext() == sslCtx
+            && config.priorKnowledge() == priorKnowledge
+            && config.forceFullHandshake() == forceFullHandshake
+            && config.debug() == debug
+            && config.connectionWindowSize() == connectionWindowSize
+            && config.autoTuneWindow() == autoTuneWindow
+            && config.tcpNoDelay() == tcpNoDelay
+            && config.receiveBufferSize() == receiveBufferSize
+            && config.sendBufferSize() == sendBufferSize
+            && config.tcpQuickAck() == tcpQuickAck
+            && config.encoderTableSize() == encoderTableSize
+            && config.neverIndexedHeaders().equals(template.neverIndexedHeaders())
+            && config.hpackStats() == hpackStats
+            && config.pushSizeLimit() == pushSizeLimit
+            && config.pingInterval() == pingInterval
+            && config.pingTimeout() == pingTimeout;
+    }
+
+    /**
+     * Build the connection configuration and the request template, unless done already
+     *
+     * Requests are built from the template only where they are sent, as the body of each is a
+     * pooled buffer released once it has been written.
+     *
+     * @return {@code false} if the request cannot be sent, in which case {@code sampleResult} holds the failure
+     */
+    private boolean prepare(SampleResult sampleResult) {
+        if (config == null) {
+            try {
+                configure(null);
+            } catch (IOException | IllegalArgumentException exception) {
+                sampleResult.setSuccessful(false);
+                sampleResult.setResponseMessage(exception.toString());
+                return false;
+            }
+        }
         try {
-            sslCtx = SslContextBuilder.forClient()
-                .sslProvider(provider)
-                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
-                .trustManager(InsecureTrustManagerFactory.INSTANCE)
-                .applicationProtocolConfig(new ApplicationProtocolConfig(
-                    Protocol.ALPN,
-                    SelectorFailureBehavior.NO_ADVERTISE,
-                    SelectedListenerFailureBehavior.ACCEPT,
-                    ApplicationProtocolNames.HTTP_2))
-                .build();
-        } catch(SSLException exception) {
-            return null;
+            digest = newDigest();
+        } catch (NoSuchAlgorithmException exception) {
+            sampleResult.setSuccessful(false);
+            sampleResult.setResponseMessage(exception.toString());
+            return false;
         }
 
-        return sslCtx;
+        // Set attributes to SampleResult
+        sampleResult.setURL(template.url());
+
+        return true;
+    }
+
+    /**
+     * @return A new digest for one response body, {@code null} if no digest is configured or there is no body
+     */
+    private MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return headOnly || bodyDigestAlgorithm == null || bodyDigestAlgorithm.isEmpty()
+            ? null : MessageDigest.getInstance(bodyDigestAlgorithm);
+    }
+
+    /**
+     * @return A response to fill, retaining nothing for HEAD requests, whose responses have no body
+     */
+    private Http2Response newResponse(MessageDigest responseDigest) {
+        return headOnly ? new Http2Response(0, null) : new Http2Response(maxRetainedBodyBytes, responseDigest);
+    }
+
+    /**
+     * Build a request for {@code requestPath} carrying the headers of the HeaderManager
+     */
+    private FullHttpRequest newRequest(String requestPath) {
+        return template.newRequest(requestPath, body);
+    }
+
+    /**
+     * Compare the digest computed while streaming the body with the expected one
+     */
+    private void checkBodyDigest(SampleResult sampleResult, String actual) {
+        if (expectedBodyDigest == null || expectedBodyDigest.isEmpty()) {
+            return;
+        }
+        AssertionResult assertion = new AssertionResult(bodyDigestAlgorithm + " body digest");
+        if (!expectedBodyDigest.equalsIgnoreCase(actual)) {
+            assertion.setFailure(true);
+            assertion.setFailureMessage("Body " + bodyDigestAlgorithm + " digest " + actual
+                + " does not match expected " + expectedBodyDigest);
+            sampleResult.setSuccessful(false);
+        }
+        sampleResult.addAssertionResult(assertion);
     }
 
     /**
      * Convert Response headers set by Netty stack to one String instance
      */
-    private String getResponseHeaders(FullHttpResponse response) {
+    static String getResponseHeaders(FullHttpResponse response) {
         StringBuilder headerBuf = new StringBuilder();
 
         Iterator<Entry<String, String>> iterator = response.headers().iteratorConverted();
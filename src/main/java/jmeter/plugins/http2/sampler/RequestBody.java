@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The body of a POST, PUT or PATCH request.
+ *
+ * Text bodies are encoded once and copied into a pooled direct buffer per request. File bodies
+ * are memory-mapped once per test and every request wraps the mapping, so the file is never
+ * read onto the heap and the DATA frames are written straight from the page cache.
+ *
+ * A body can be compressed with gzip or deflate to load the server's decompression. It is
+ * compressed once, so the client does not spend CPU on it per request; compressed files are
+ * held on the heap and shared by all threads.
+ */
+public final class RequestBody {
+
+    /** Content-Encoding of a body sent as is */
+    public static final String ENCODING_NONE = "none";
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    private static final ConcurrentMap<String, MappedByteBuffer> mappedFiles =
+        new ConcurrentHashMap<String, MappedByteBuffer>();
+    private static final ConcurrentMap<String, RequestBody> compressedFiles =
+        new ConcurrentHashMap<String, RequestBody>();
+
+    private final byte[] bytes;
+    private final ByteBuffer mapped;
+    private final String fileKey;
+    private final String contentEncoding;
+
+    private RequestBody(byte[] bytes, ByteBuffer mapped, String fileKey, String contentEncoding) {
+        this.bytes = bytes;
+        this.mapped = mapped;
+        this.fileKey = fileKey;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @param bytes The encoded body
+     */
+    public static RequestBody bytes(byte[] bytes) {
+        return new RequestBody(bytes, null, null, null);
+    }
+
+    /**
+     * @param path A file sent as is
+     * @throws IOException if the file cannot be mapped
+     */
+    public static RequestBody file(String path) throws IOException {
+        final File file = new File(path).getCanonicalFile();
+        // A changed file gets a new mapping, the stale one goes away with its last reference
+        final String key = file.getPath() + ':' + file.lastModified() + ':' + file.length();
+        MappedByteBuffer buffer = mappedFiles.get(key);
+        if (buffer == null) {
+            buffer = map(file);
+            MappedByteBuffer existing = mappedFiles.putIfAbsent(key, buffer);
+            if (existing != null) {
+                buffer = existing;
+            }
+        }
+        return new RequestBody(null, buffer, key, null);
+    }
+
+    /**
+     * Drop all file mappings and compressed files, so that a new test sees changed files
+     */
+    public static void clear() {
+        mappedFiles.clear();
+        compressedFiles.clear();
+    }
+
+    /**
+     * @param encoding {@link #ENCODING_GZIP}, {@link #ENCODING_DEFLATE} or {@link #ENCODING_NONE}
+     * @return This body compressed with {@code encoding}
+     * @throws IOException if the body cannot be read
+     * @throws IllegalArgumentException if the encoding is not supported
+     */
+    public RequestBody encode(String encoding) throws IOException {
+        if (encoding == null || encoding.isEmpty() || ENCODING_NONE.equals(encoding)) {
+            return this;
+        }
+        if (!ENCODING_GZIP.equals(encoding) && !ENCODING_DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported body encoding: " + encoding);
+        }
+        if (fileKey == null) {
+            return new RequestBody(compress(encoding), null, null, encoding);
+        }
+        final String key = fileKey + ':' + encoding;
+        RequestBody compressed = compressedFiles.get(key);
+        if (compressed == null) {
+            compressed = new RequestBody(compress(encoding), null, null, encoding);
+            RequestBody existing = compressedFiles.putIfAbsent(key, compressed);
+            if (existing != null) {
+                compressed = existing;
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * @return The Content-Encoding of the body, {@code null} if it is not compressed
+     */
+    public String contentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @return The size of the body in bytes
+     */
+    public long length() {
+        return bytes != null ? bytes.length : mapped.capacity();
+    }
+
+    /**
+     * @param alloc Allocator for copied text bodies
+     * @return A buffer with the whole body, released once the request has been written
+     */
+    public ByteBuf newContent(ByteBufAllocator alloc) {
+        if (bytes != null) {
+            return alloc.directBuffer(bytes.length).writeBytes(bytes);
+        }
+        // Wrapping neither copies the file nor frees the mapping on release
+        return Unpooled.wrappedBuffer(mapped.duplicate());
+    }
+
+    private byte[] compress(String encoding) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(length() / 2 + 64, 1 << 20));
+        final OutputStream out = ENCODING_GZIP.equals(encoding)
+            ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed);
+        try {
+            if (bytes != null) {
+                out.write(bytes);
+            } else {
+                final ByteBuffer source = mapped.duplicate();
+                final byte[] chunk = new byte[8192];
+                while (source.hasRemaining()) {
+                    int length = Math.min(chunk.length, source.remaining());
+                    source.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return compressed.toByteArray();
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to send as a request body: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.jmeter.protocol.http.control.Header;
+import org.apache.jmeter.protocol.http.control.HeaderManager;
+import org.apache.jmeter.testelement.property.CollectionProperty;
+import org.apache.jmeter.testelement.property.FunctionProperty;
+import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.testelement.property.PropertyIterator;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http2.HttpUtil;
+import io.netty.util.AsciiString;
+
+import static io.netty.handler.codec.http.HttpVersion.*;
+
+/**
+ * The parts of a request that stay the same from one iteration of a JMeter thread to the next.
+ *
+ * Compiled once per thread: the method, the :authority and :scheme, the base URL and every header
+ * of the HeaderManager whose name and value contain no JMeter function or variable, with names
+ * already lower-cased as HTTP/2 requires. Building a request then only copies references, and
+ * re-evaluates the few headers that change per iteration.
+ *
+ * Static headers go out with identical bytes on every request, so the HPACK encoder indexes them
+ * once per connection and sends a table index afterwards. The names of the per-iteration headers
+ * are reported by {@link #neverIndexedHeaders()}, so that their ever-changing values are not
+ * indexed and cannot evict the static entries from the dynamic table. Headers named sensitive,
+ * such as credentials, are never indexed either.
+ */
+public final class RequestTemplate {
+
+    private static final AsciiString HTTPS = new AsciiString("https");
+    private static final AsciiString HTTP = new AsciiString("http");
+
+    private final String methodName;
+    private final String host;
+    private final int port;
+    private final boolean secure;
+    private final String sensitiveHeaders;
+
+    private final HttpMethod method;
+    private final AsciiString scheme;
+    private final AsciiString authority;
+    private final String baseUrl;
+    private final URL url;
+    private final List<AsciiString> staticNames = new ArrayList<AsciiString>();
+    private final List<AsciiString> staticValues = new ArrayList<AsciiString>();
+    private final List<Header> dynamicHeaders = new ArrayList<Header>();
+    private final Set<String> neverIndexedHeaders;
+    // What the headers were compiled from, to tell a merged copy of the HeaderManager from a changed one
+    private final List<Object> headerContent = new ArrayList<Object>();
+    // Last HeaderManager found to hold these headers, templates are only used by one thread
+    private HeaderManager matchedHeaderManager;
+
+    private RequestTemplate(String methodName, String host, int port, boolean secure, HeaderManager headerManager,
+            String sensitiveHeaders) throws MalformedURLException {
+        this.methodName = methodName;
+        this.host = host;
+        this.port = port;
+        this.secure = secure;
+        this.matchedHeaderManager = headerManager;
+        this.sensitiveHeaders = sensitiveHeaders;
+
+        this.method = methodName == null || methodName.isEmpty() ? HttpMethod.GET : HttpMethod.valueOf(methodName);
+        this.scheme = secure ? HTTPS : HTTP;
+        this.authority = new AsciiString(host + ':' + port);
+        this.baseUrl = scheme + "://" + authority;
+        this.url = new URL(baseUrl);
+
+        final Set<String> dynamicNames = new TreeSet<String>();
+        if (sensitiveHeaders != null) {
+            for (String name : sensitiveHeaders.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    dynamicNames.add(name.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        if (headerManager != null) {
+            CollectionProperty headers = headerManager.getHeaders();
+            if (headers != null) {
+                PropertyIterator i = headers.iterator();
+                while (i.hasNext()) {
+                    Header header = (Header) i.next().getObjectValue();
+                    PropertyIterator properties = header.propertyIterator();
+                    while (properties.hasNext()) {
+                        headerContent.add(content(properties.next()));
+                    }
+                    if (isStatic(header)) {
+                        staticNames.add(new AsciiString(header.getName().toLowerCase(Locale.ROOT)));
+                        staticValues.add(new AsciiString(header.getValue()));
+                    } else {
+                        dynamicHeaders.add(header);
+                        dynamicNames.add(header.getName().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+        }
+        this.neverIndexedHeaders = Collections.unmodifiableSet(dynamicNames);
+    }
+
+    /**
+     * @param method Request method, empty for GET
+     * @param secure {@code true} for https, {@code false} for cleartext http
+     * @param headerManager Headers added to every request, {@code null} for none
+     * @param sensitiveHeaders Comma separated names of headers never to index, such as credentials
+     * @throws MalformedURLException if {@code host} and {@code port} do not form a valid URL
+     */
+    public static RequestTemplate compile(String method, String host, int port, boolean secure,
+            HeaderManager headerManager, String sensitiveHeaders) throws MalformedURLException {
+        return new RequestTemplate(method, host, port, secure, headerManager, sensitiveHeaders);
+    }
+
+    /**
+     * @return {@code true} if the template was compiled from these values and can be reused
+     */
+    public boolean matches(String method, String host, int port, boolean secure, HeaderManager headerManager,
+            String sensitiveHeaders) {
+        if (this.port != port || this.secure != secure || !this.host.equals(host)
+                || !String.valueOf(this.methodName).equals(String.valueOf(method))
+                || !String.valueOf(this.sensitiveHeaders).equals(String.valueOf(sensitiveHeaders))) {
+            return false;
+        }
+        if (headerManager == matchedHeaderManager) {
+            return true;
+        }
+        // The sampler merges its HeaderManagers into a new instance every iteration, so compare what they hold
+        if (!sameHeaders(headerManager)) {
+            return false;
+        }
+        matchedHeaderManager = headerManager;
+        return true;
+    }
+
+    /**
+     * @return {@code true} if {@code headerManager} holds the headers the template was compiled from
+     */
+    private boolean sameHeaders(HeaderManager headerManager) {
+        final CollectionProperty headers = headerManager != null ? headerManager.getHeaders() : null;
+        if (headers == null) {
+            return headerContent.isEmpty();
+        }
+        int index = 0;
+        PropertyIterator i = headers.iterator();
+        while (i.hasNext()) {
+            PropertyIterator properties = ((Header) i.next().getObjectValue()).propertyIterator();
+            while (properties.hasNext()) {
+                if (index == headerContent.size() || !headerContent.get(index++).equals(content(properties.next()))) {
+                    return false;
+                }
+            }
+        }
+        return index == headerContent.size();
+    }
+
+    /**
+     * @return The URL of the server, without a path
+     */
+    public URL url() {
+        return url;
+    }
+
+    /**
+     * @return The URL of a request for {@code path}, {@code null} if {@code path} is malformed
+     */
+    public URL url(String path) {
+        try {
+            return new URL(baseUrl + path);
+        } catch (MalformedURLException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The lower-cased names of the sensitive headers and of those whose value changes per iteration
+     */
+    public Set<String> neverIndexedHeaders() {
+        return neverIndexedHeaders;
+    }
+
+    /**
+     * Build a request for {@code path}
+     *
+     * @param body The body to send, {@code null} for none
+     */
+    public FullHttpRequest newRequest(String path, RequestBody body) {
+        final FullHttpRequest request;
+        if (body != null) {
+            // Same allocator as the channels, so the buffer goes back to its pool once written
+            request = new DefaultFullHttpRequest(HTTP_1_1, method, path, body.newContent(PooledByteBufAllocator.DEFAULT));
+            request.headers().setLong(HttpHeaderNames.CONTENT_LENGTH, body.length());
+            if (body.contentEncoding() != null) {
+                request.headers().set(HttpHeaderNames.CONTENT_ENCODING, body.contentEncoding());
+            }
+        } else {
+            request = new DefaultFullHttpRequest(HTTP_1_1, method, path, Unpooled.EMPTY_BUFFER);
+        }
+
+        // Pseudo-headers given directly, rather than parsed out of a Host header for every request
+        final HttpHeaders headers = request.headers();
+        headers.add(HttpUtil.ExtensionHeaderNames.AUTHORITY.text(), authority);
+        headers.add(HttpUtil.ExtensionHeaderNames.SCHEME.text(), scheme);
+
+        for (int i = 0; i < staticNames.size(); i++) {
+            headers.add(staticNames.get(i), staticValues.get(i));
+        }
+        for (Header header : dynamicHeaders) {
+            headers.add(header.getName().toLowerCase(Locale.ROOT), header.getValue());
+        }
+
+        return request;
+    }
+
+    /**
+     * @return The text of {@code property}, or its function, which is shared by the copies of a header
+     *         and must not be evaluated here
+     */
+    private static Object content(JMeterProperty property) {
+        return property instanceof FunctionProperty ? property.getObjectValue() : property.getStringValue();
+    }
+
+    /**
+     * @return {@code false} if the name or value of {@code header} is evaluated per iteration
+     */
+    private static boolean isStatic(Header header) {
+        PropertyIterator i = header.propertyIterator();
+        while (i.hasNext()) {
+            JMeterProperty property = i.next();
+            if (property instanceof FunctionProperty) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
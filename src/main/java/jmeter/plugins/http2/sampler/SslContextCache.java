@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+/**
+ * Builds client {@link SslContext}s once per distinct TLS configuration and keeps them for the whole test.
+ *
+ * Besides saving the OpenSSL probe, the cipher filtering and the native SSL_CTX allocation per
+ * connection, a long-lived context keeps its TLS session cache, so reconnects to the same peer
+ * can resume the session with an abbreviated handshake.
+ */
+public final class SslContextCache {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    /** JMeter property with the number of cached client TLS sessions, 0 uses the provider default */
+    public static final String SESSION_CACHE_SIZE_PROPERTY = "http2sampler.ssl_session_cache_size";
+    /** JMeter property with the lifetime of cached client TLS sessions in seconds, 0 uses the provider default */
+    public static final String SESSION_TIMEOUT_PROPERTY = "http2sampler.ssl_session_timeout";
+
+    private static final ConcurrentMap<String, SslContext> contexts = new ConcurrentHashMap<String, SslContext>();
+    /** The key of every cached context, contexts compare by identity */
+    private static final ConcurrentMap<SslContext, String> keys = new ConcurrentHashMap<SslContext, String>();
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private static volatile SslProvider provider;
+    /** The context of the current test, so the properties are only read once */
+    private static volatile SslContext current;
+
+    private SslContextCache() {
+    }
+
+    /**
+     * @return The context for the TLS configuration of the current test, built on first use
+     * @throws SSLException if the context cannot be built
+     */
+    public static SslContext get() throws SSLException {
+        SslContext sslCtx = current;
+        if (sslCtx != null) {
+            return sslCtx;
+        }
+        sslCtx = build();
+        current = sslCtx;
+        return sslCtx;
+    }
+
+    private static SslContext build() throws SSLException {
+        final long sessionCacheSize = JMeterUtils.getPropDefault(SESSION_CACHE_SIZE_PROPERTY, 0L);
+        final long sessionTimeout = JMeterUtils.getPropDefault(SESSION_TIMEOUT_PROPERTY, 0L);
+        final SslProvider sslProvider = provider();
+        final String key = sslProvider + ":" + sessionCacheSize + ":" + sessionTimeout;
+
+        SslContext sslCtx = contexts.get(key);
+        if (sslCtx != null) {
+            return sslCtx;
+        }
+
+        lock.lock();
+        try {
+            sslCtx = contexts.get(key);
+            if (sslCtx == null) {
+                log.debug("Building SslContext for " + key);
+                sslCtx = SslContextBuilder.forClient()
+                    .sslProvider(sslProvider)
+                    .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .sessionCacheSize(sessionCacheSize)
+                    .sessionTimeout(sessionTimeout)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(
+                        Protocol.ALPN,
+                        SelectorFailureBehavior.NO_ADVERTISE,
+                        SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2))
+                    .build();
+                contexts.put(key, sslCtx);
+                keys.put(sslCtx, key);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return sslCtx;
+    }
+
+    /**
+     * @return The provider and session cache settings {@code sslCtx} was built with, so connections
+     *         whose sessions cannot be resumed by each other are told apart
+     */
+    public static String key(SslContext sslCtx) {
+        final String key = keys.get(sslCtx);
+        return key != null ? key : "external@" + Integer.toHexString(System.identityHashCode(sslCtx));
+    }
+
+    /**
+     * Drop all cached contexts, so that a new test picks up changed properties
+     */
+    public static void clear() {
+        current = null;
+        contexts.clear();
+        keys.clear();
+    }
+
+    private static SslProvider provider() {
+        SslProvider current = provider;
+        if (current == null) {
+            current = OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK;
+            provider = current;
+        }
+        return current;
+    }
+}
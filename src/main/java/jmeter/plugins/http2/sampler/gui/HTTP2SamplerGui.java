@@ -16,12 +16,17 @@
 package jmeter.plugins.http2.sampler.gui;
 
 import jmeter.plugins.http2.sampler.HTTP2Sampler;
+import jmeter.plugins.http2.sampler.Http2Priority;
+import jmeter.plugins.http2.sampler.RequestBody;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
 
+import javax.swing.JCheckBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.BoxLayout;
 
@@ -40,6 +45,47 @@ public class HTTP2SamplerGui extends AbstractSamplerGui {
     private JTextField domain;
     private JTextField port;
     private JTextField path;
+    private JTextArea additionalPaths;
+    private JTextField streams;
+    private JLabeledChoice priorityPreset;
+    private JLabeledChoice protocol;
+    private JLabeledChoice connectionMode;
+    private JCheckBox forceFullHandshake;
+    private JTextField maxRetainedBody;
+    private JLabeledChoice bodyDigest;
+    private JTextField expectedBodyDigest;
+    private JTextArea queryParameters;
+    private JLabeledChoice bodyType;
+    private JLabeledChoice bodyEncoding;
+    private JTextArea body;
+    private JCheckBox debug;
+    private JCheckBox async;
+    private JTextField targetRate;
+    private JTextField maxInFlight;
+    private JTextField headerTableSize;
+    private JTextField maxConcurrentStreams;
+    private JTextField initialWindowSize;
+    private JTextField maxFrameSize;
+    private JTextField maxHeaderListSize;
+    private JTextField connectionWindowSize;
+    private JCheckBox autoTuneWindow;
+    private JTextField encoderTableSize;
+    private JTextField sensitiveHeaders;
+    private JCheckBox hpackStats;
+    private JCheckBox tcpNoDelay;
+    private JTextField receiveBufferSize;
+    private JTextField sendBufferSize;
+    private JCheckBox tcpQuickAck;
+    private JCheckBox serverPush;
+    private JTextField pushSizeLimit;
+    private JTextField warmupConnections;
+    private JTextField warmupRequests;
+    private JTextField pingInterval;
+    private JTextField pingTimeout;
+    private JCheckBox pingRtt;
+    private JCheckBox aggregate;
+    private JTextField aggregateInterval;
+    private JTextField detailRate;
 
     public HTTP2SamplerGui(){
         super();
@@ -54,6 +100,7 @@ public class HTTP2SamplerGui extends AbstractSamplerGui {
 
         webRequestPanel.add(getWebServerPanel(), BorderLayout.NORTH);
         webRequestPanel.add(getPathPanel(), BorderLayout.CENTER);
+        webRequestPanel.add(getOptionsPanel(), BorderLayout.SOUTH);
 
         this.add(webRequestPanel, BorderLayout.CENTER);
     }
@@ -82,20 +129,101 @@ public class HTTP2SamplerGui extends AbstractSamplerGui {
         super.configure(element);
 
         HTTP2Sampler sampler = (HTTP2Sampler)element;
-        /* method.setText(sampler.getMethod()); */
+        method.setText(sampler.getMethod());
         domain.setText(sampler.getDomain());
         port.setText(String.valueOf(sampler.getPort()));
         path.setText(sampler.getPath());
+        additionalPaths.setText(sampler.getAdditionalPaths());
+        streams.setText(String.valueOf(sampler.getStreams()));
+        priorityPreset.setText(sampler.getPriorityPreset());
+        protocol.setText(sampler.getProtocol());
+        connectionMode.setText(sampler.getConnectionMode());
+        forceFullHandshake.setSelected(sampler.isForceFullHandshake());
+        maxRetainedBody.setText(String.valueOf(sampler.getMaxRetainedBody()));
+        bodyDigest.setText(sampler.getBodyDigest());
+        expectedBodyDigest.setText(sampler.getExpectedBodyDigest());
+        queryParameters.setText(sampler.getQueryParameters());
+        bodyType.setText(sampler.getBodyType());
+        bodyEncoding.setText(sampler.getBodyEncoding());
+        body.setText(sampler.getBody());
+        debug.setSelected(sampler.isDebug());
+        async.setSelected(sampler.isAsync());
+        targetRate.setText(String.valueOf(sampler.getTargetRate()));
+        maxInFlight.setText(String.valueOf(sampler.getMaxInFlight()));
+        headerTableSize.setText(String.valueOf(sampler.getHeaderTableSize()));
+        maxConcurrentStreams.setText(String.valueOf(sampler.getMaxConcurrentStreams()));
+        initialWindowSize.setText(String.valueOf(sampler.getInitialWindowSize()));
+        maxFrameSize.setText(String.valueOf(sampler.getMaxFrameSize()));
+        maxHeaderListSize.setText(String.valueOf(sampler.getMaxHeaderListSize()));
+        connectionWindowSize.setText(String.valueOf(sampler.getConnectionWindowSize()));
+        autoTuneWindow.setSelected(sampler.isAutoTuneWindow());
+        encoderTableSize.setText(String.valueOf(sampler.getEncoderTableSize()));
+        sensitiveHeaders.setText(sampler.getSensitiveHeaders());
+        hpackStats.setSelected(sampler.isHpackStats());
+        tcpNoDelay.setSelected(sampler.isTcpNoDelay());
+        receiveBufferSize.setText(String.valueOf(sampler.getReceiveBufferSize()));
+        sendBufferSize.setText(String.valueOf(sampler.getSendBufferSize()));
+        tcpQuickAck.setSelected(sampler.isTcpQuickAck());
+        serverPush.setSelected(sampler.isServerPush());
+        pushSizeLimit.setText(String.valueOf(sampler.getPushSizeLimit()));
+        warmupConnections.setText(String.valueOf(sampler.getWarmupConnections()));
+        warmupRequests.setText(String.valueOf(sampler.getWarmupRequests()));
+        pingInterval.setText(String.valueOf(sampler.getPingInterval()));
+        pingTimeout.setText(String.valueOf(sampler.getPingTimeout()));
+        pingRtt.setSelected(sampler.isPingRtt());
+        aggregate.setSelected(sampler.isAggregate());
+        aggregateInterval.setText(String.valueOf(sampler.getAggregateInterval()));
+        detailRate.setText(String.valueOf(sampler.getDetailRate()));
     }
 
     @Override
     public void modifyTestElement(TestElement element) {
         configureTestElement(element);
-        /* element.setProperty(HTTP2Sampler.METHOD, method.getText()); */
-        element.setProperty(HTTP2Sampler.METHOD, HTTP2Sampler.DEFAULT_METHOD);
+        element.setProperty(HTTP2Sampler.METHOD, method.getText());
         element.setProperty(HTTP2Sampler.DOMAIN, domain.getText());
         element.setProperty(HTTP2Sampler.PORT, port.getText());
         element.setProperty(HTTP2Sampler.PATH, path.getText());
+        element.setProperty(HTTP2Sampler.ADDITIONAL_PATHS, additionalPaths.getText());
+        element.setProperty(HTTP2Sampler.STREAMS, streams.getText());
+        element.setProperty(HTTP2Sampler.PRIORITY_PRESET, priorityPreset.getText());
+        element.setProperty(HTTP2Sampler.PROTOCOL, protocol.getText());
+        element.setProperty(HTTP2Sampler.CONNECTION_MODE, connectionMode.getText());
+        ((HTTP2Sampler) element).setForceFullHandshake(forceFullHandshake.isSelected());
+        element.setProperty(HTTP2Sampler.MAX_RETAINED_BODY, maxRetainedBody.getText());
+        element.setProperty(HTTP2Sampler.BODY_DIGEST, bodyDigest.getText());
+        element.setProperty(HTTP2Sampler.EXPECTED_BODY_DIGEST, expectedBodyDigest.getText());
+        element.setProperty(HTTP2Sampler.QUERY_PARAMETERS, queryParameters.getText());
+        element.setProperty(HTTP2Sampler.BODY_TYPE, bodyType.getText());
+        element.setProperty(HTTP2Sampler.BODY_ENCODING, bodyEncoding.getText());
+        element.setProperty(HTTP2Sampler.BODY, body.getText());
+        ((HTTP2Sampler) element).setDebug(debug.isSelected());
+        ((HTTP2Sampler) element).setAsync(async.isSelected());
+        element.setProperty(HTTP2Sampler.TARGET_RATE, targetRate.getText());
+        element.setProperty(HTTP2Sampler.MAX_IN_FLIGHT, maxInFlight.getText());
+        element.setProperty(HTTP2Sampler.HEADER_TABLE_SIZE, headerTableSize.getText());
+        element.setProperty(HTTP2Sampler.MAX_CONCURRENT_STREAMS, maxConcurrentStreams.getText());
+        element.setProperty(HTTP2Sampler.INITIAL_WINDOW_SIZE, initialWindowSize.getText());
+        element.setProperty(HTTP2Sampler.MAX_FRAME_SIZE, maxFrameSize.getText());
+        element.setProperty(HTTP2Sampler.MAX_HEADER_LIST_SIZE, maxHeaderListSize.getText());
+        element.setProperty(HTTP2Sampler.CONNECTION_WINDOW_SIZE, connectionWindowSize.getText());
+        ((HTTP2Sampler) element).setAutoTuneWindow(autoTuneWindow.isSelected());
+        element.setProperty(HTTP2Sampler.ENCODER_TABLE_SIZE, encoderTableSize.getText());
+        element.setProperty(HTTP2Sampler.SENSITIVE_HEADERS, sensitiveHeaders.getText());
+        ((HTTP2Sampler) element).setTcpNoDelay(tcpNoDelay.isSelected());
+        element.setProperty(HTTP2Sampler.RECEIVE_BUFFER_SIZE, receiveBufferSize.getText());
+        element.setProperty(HTTP2Sampler.SEND_BUFFER_SIZE, sendBufferSize.getText());
+        ((HTTP2Sampler) element).setTcpQuickAck(tcpQuickAck.isSelected());
+        ((HTTP2Sampler) element).setServerPush(serverPush.isSelected());
+        element.setProperty(HTTP2Sampler.PUSH_SIZE_LIMIT, pushSizeLimit.getText());
+        element.setProperty(HTTP2Sampler.WARMUP_CONNECTIONS, warmupConnections.getText());
+        element.setProperty(HTTP2Sampler.WARMUP_REQUESTS, warmupRequests.getText());
+        element.setProperty(HTTP2Sampler.PING_INTERVAL, pingInterval.getText());
+        element.setProperty(HTTP2Sampler.PING_TIMEOUT, pingTimeout.getText());
+        ((HTTP2Sampler) element).setPingRtt(pingRtt.isSelected());
+        ((HTTP2Sampler) element).setHpackStats(hpackStats.isSelected());
+        ((HTTP2Sampler) element).setAggregate(aggregate.isSelected());
+        element.setProperty(HTTP2Sampler.AGGREGATE_INTERVAL, aggregateInterval.getText());
+        element.setProperty(HTTP2Sampler.DETAIL_RATE, detailRate.getText());
     }
 
     private final JPanel getWebServerPanel() {
@@ -103,7 +231,9 @@ public class HTTP2SamplerGui extends AbstractSamplerGui {
 
         final JPanel domainPanel = getDomainPanel();
         final JPanel portPanel = getPortPanel();
+        method = new JLabeledChoice("Method", HTTP2Sampler.METHODS);
 
+        webServerPanel.add(method, BorderLayout.WEST);
         webServerPanel.add(domainPanel, BorderLayout.CENTER);
         webServerPanel.add(portPanel, BorderLayout.EAST);
 
@@ -142,13 +272,241 @@ public class HTTP2SamplerGui extends AbstractSamplerGui {
         JLabel label = new JLabel("Path");
         label.setLabelFor(path);
 
+        streams = new JTextField(4);
+        JLabel streamsLabel = new JLabel("Streams per path");
+        streamsLabel.setLabelFor(streams);
+
         JPanel pathPanel = new HorizontalPanel();
         pathPanel.add(label);
         pathPanel.add(path);
+        pathPanel.add(streamsLabel);
+        pathPanel.add(streams);
+
+        priorityPreset = new JLabeledChoice("Priority preset", Http2Priority.PRESETS);
+        pathPanel.add(priorityPreset);
+
+        additionalPaths = new JTextArea(3, 40);
+        JLabel additionalPathsLabel = new JLabel(
+            "Additional paths (one per line, optionally followed by weight=, depends=, exclusive, critical)");
+        additionalPathsLabel.setLabelFor(additionalPaths);
+
+        JPanel additionalPathsPanel = new JPanel(new BorderLayout(5, 0));
+        additionalPathsPanel.add(additionalPathsLabel, BorderLayout.NORTH);
+        additionalPathsPanel.add(new JScrollPane(additionalPaths), BorderLayout.CENTER);
+
+        queryParameters = new JTextArea(3, 40);
+        JLabel queryParametersLabel = new JLabel("Query parameters (name=value, one per line)");
+        queryParametersLabel.setLabelFor(queryParameters);
+
+        JPanel queryParametersPanel = new JPanel(new BorderLayout(5, 0));
+        queryParametersPanel.add(queryParametersLabel, BorderLayout.NORTH);
+        queryParametersPanel.add(new JScrollPane(queryParameters), BorderLayout.CENTER);
+
+        bodyType = new JLabeledChoice("Body from", new String[] {
+            HTTP2Sampler.BODY_TYPE_TEXT, HTTP2Sampler.BODY_TYPE_FILE, HTTP2Sampler.BODY_TYPE_VARIABLE });
+        bodyEncoding = new JLabeledChoice("Content-Encoding", new String[] {
+            RequestBody.ENCODING_NONE, RequestBody.ENCODING_GZIP, RequestBody.ENCODING_DEFLATE });
+        body = new JTextArea(3, 40);
+
+        JPanel bodyOptionsPanel = new HorizontalPanel();
+        bodyOptionsPanel.add(bodyType);
+        bodyOptionsPanel.add(bodyEncoding);
+
+        JPanel bodyPanel = new JPanel(new BorderLayout(5, 0));
+        bodyPanel.add(bodyOptionsPanel, BorderLayout.NORTH);
+        bodyPanel.add(new JScrollPane(body), BorderLayout.CENTER);
 
         JPanel panel = new JPanel();
         panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
         panel.add(pathPanel);
+        panel.add(additionalPathsPanel);
+        panel.add(queryParametersPanel);
+        panel.add(bodyPanel);
+
+        return panel;
+    }
+
+    private final JPanel getOptionsPanel() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        panel.add(getConnectionPanel());
+        panel.add(getWarmupPanel());
+        panel.add(getPingPanel());
+        panel.add(getSocketPanel());
+        panel.add(getSettingsPanel());
+        panel.add(getHpackPanel());
+        panel.add(getPushPanel());
+        panel.add(getResponsePanel());
+        panel.add(getAsyncPanel());
+        panel.add(getAggregatePanel());
+
+        return panel;
+    }
+
+    private final JPanel getConnectionPanel() {
+        protocol = new JLabeledChoice("Protocol", new String[] {
+            HTTP2Sampler.PROTOCOL_H2, HTTP2Sampler.PROTOCOL_H2C_UPGRADE, HTTP2Sampler.PROTOCOL_H2C });
+        connectionMode = new JLabeledChoice("Connection reuse",
+            new String[] { HTTP2Sampler.CONNECTION_MODE_PER_THREAD, HTTP2Sampler.CONNECTION_MODE_SHARED });
+
+        forceFullHandshake = new JCheckBox("Force full TLS handshake");
+        debug = new JCheckBox("Debug logging (frames and bodies)");
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(protocol);
+        panel.add(connectionMode);
+        panel.add(forceFullHandshake);
+        panel.add(debug);
+
+        return panel;
+    }
+
+    private final JPanel getSocketPanel() {
+        tcpNoDelay = new JCheckBox("TCP_NODELAY");
+        receiveBufferSize = new JTextField(8);
+        sendBufferSize = new JTextField(8);
+        tcpQuickAck = new JCheckBox("TCP_QUICKACK (epoll)");
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(new JLabel("Socket (-1 = OS default):"));
+        panel.add(tcpNoDelay);
+        addLabeled(panel, "SO_RCVBUF", receiveBufferSize);
+        addLabeled(panel, "SO_SNDBUF", sendBufferSize);
+        panel.add(tcpQuickAck);
+
+        return panel;
+    }
+
+    private final JPanel getHpackPanel() {
+        encoderTableSize = new JTextField(6);
+        sensitiveHeaders = new JTextField(30);
+        hpackStats = new JCheckBox("Measure compression");
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(new JLabel("HPACK:"));
+        addLabeled(panel, "Encoder table (-1 = server limit)", encoderTableSize);
+        addLabeled(panel, "Never-indexed headers", sensitiveHeaders);
+        panel.add(hpackStats);
+
+        return panel;
+    }
+
+    private final JPanel getWarmupPanel() {
+        warmupConnections = new JTextField(4);
+        warmupRequests = new JTextField(6);
+
+        JPanel panel = new HorizontalPanel();
+        addLabeled(panel, "Warm-up connections", warmupConnections);
+        addLabeled(panel, "Warm-up requests per connection", warmupRequests);
+
+        return panel;
+    }
+
+    private final JPanel getPingPanel() {
+        pingInterval = new JTextField(6);
+        pingTimeout = new JTextField(6);
+        pingRtt = new JCheckBox("Add PING RTT sub-result");
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(new JLabel("PING (ms):"));
+        addLabeled(panel, "Keep-alive interval (0 = off)", pingInterval);
+        addLabeled(panel, "Timeout", pingTimeout);
+        panel.add(pingRtt);
+
+        return panel;
+    }
+
+    private final JPanel getPushPanel() {
+        serverPush = new JCheckBox("Server push");
+        pushSizeLimit = new JTextField(10);
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(serverPush);
+        addLabeled(panel, "Cancel pushes over (bytes, -1 = never)", pushSizeLimit);
+
+        return panel;
+    }
+
+    private final JPanel getSettingsPanel() {
+        headerTableSize = new JTextField(6);
+        maxConcurrentStreams = new JTextField(6);
+        initialWindowSize = new JTextField(8);
+        maxFrameSize = new JTextField(8);
+        maxHeaderListSize = new JTextField(6);
+        connectionWindowSize = new JTextField(8);
+        autoTuneWindow = new JCheckBox("Auto-tune windows");
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(new JLabel("SETTINGS (-1 = default):"));
+        addLabeled(panel, "Header table", headerTableSize);
+        addLabeled(panel, "Max streams", maxConcurrentStreams);
+        addLabeled(panel, "Stream window", initialWindowSize);
+        addLabeled(panel, "Max frame", maxFrameSize);
+        addLabeled(panel, "Max header list", maxHeaderListSize);
+        addLabeled(panel, "Connection window", connectionWindowSize);
+        panel.add(autoTuneWindow);
+
+        return panel;
+    }
+
+    private static void addLabeled(JPanel panel, String text, JTextField field) {
+        JLabel label = new JLabel(text);
+        label.setLabelFor(field);
+        panel.add(label);
+        panel.add(field);
+    }
+
+    private final JPanel getAsyncPanel() {
+        async = new JCheckBox("Asynchronous (open model)");
+
+        targetRate = new JTextField(6);
+        JLabel targetRateLabel = new JLabel("Requests/s per thread");
+        targetRateLabel.setLabelFor(targetRate);
+
+        maxInFlight = new JTextField(6);
+        JLabel maxInFlightLabel = new JLabel("Max in flight per thread");
+        maxInFlightLabel.setLabelFor(maxInFlight);
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(async);
+        panel.add(targetRateLabel);
+        panel.add(targetRate);
+        panel.add(maxInFlightLabel);
+        panel.add(maxInFlight);
+
+        return panel;
+    }
+
+    private final JPanel getAggregatePanel() {
+        aggregate = new JCheckBox("Aggregate into histograms");
+        aggregateInterval = new JTextField(4);
+        detailRate = new JTextField(6);
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(aggregate);
+        addLabeled(panel, "Summary every (s)", aggregateInterval);
+        addLabeled(panel, "Detailed samples (0-1)", detailRate);
+
+        return panel;
+    }
+
+    private final JPanel getResponsePanel() {
+        maxRetainedBody = new JTextField(8);
+        JLabel maxRetainedBodyLabel = new JLabel("Body bytes kept (-1 = all)");
+        maxRetainedBodyLabel.setLabelFor(maxRetainedBody);
+
+        bodyDigest = new JLabeledChoice("Body digest", new String[] { "", "MD5", "SHA-1", "SHA-256" });
+
+        expectedBodyDigest = new JTextField(32);
+        JLabel expectedBodyDigestLabel = new JLabel("Expected digest");
+        expectedBodyDigestLabel.setLabelFor(expectedBodyDigest);
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(maxRetainedBodyLabel);
+        panel.add(maxRetainedBody);
+        panel.add(bodyDigest);
+        panel.add(expectedBodyDigestLabel);
+        panel.add(expectedBodyDigest);
 
         return panel;
     }
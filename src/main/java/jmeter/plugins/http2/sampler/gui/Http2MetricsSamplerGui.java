@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler.gui;
+
+import jmeter.plugins.http2.sampler.Http2MetricsSampler;
+
+import java.awt.BorderLayout;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+import org.apache.jmeter.gui.util.HorizontalPanel;
+import org.apache.jmeter.samplers.gui.AbstractSamplerGui;
+import org.apache.jmeter.testelement.TestElement;
+
+public class Http2MetricsSamplerGui extends AbstractSamplerGui {
+
+    private static final long serialVersionUID = 240L;
+
+    private JTextField maxTaskLatency;
+
+    public Http2MetricsSamplerGui() {
+        super();
+
+        setLayout(new BorderLayout(0, 5));
+        setBorder(makeBorder());
+
+        this.add(makeTitlePanel(), BorderLayout.NORTH);
+        this.add(getLimitsPanel(), BorderLayout.CENTER);
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "HTTP2 Metrics Sampler";
+    }
+
+    @Override
+    public String getLabelResource() {
+        return "HTTP2 Metrics Sampler";
+    }
+
+    @Override
+    public TestElement createTestElement() {
+        Http2MetricsSampler sampler = new Http2MetricsSampler();
+
+        modifyTestElement(sampler);
+
+        return sampler;
+    }
+
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+
+        Http2MetricsSampler sampler = (Http2MetricsSampler) element;
+        maxTaskLatency.setText(String.valueOf(sampler.getMaxTaskLatency()));
+    }
+
+    @Override
+    public void modifyTestElement(TestElement element) {
+        configureTestElement(element);
+        element.setProperty(Http2MetricsSampler.MAX_TASK_LATENCY, maxTaskLatency.getText());
+    }
+
+    private final JPanel getLimitsPanel() {
+        maxTaskLatency = new JTextField(String.valueOf(Http2MetricsSampler.DEFAULT_MAX_TASK_LATENCY), 6);
+        JLabel label = new JLabel("Fail over event loop task latency (ms, -1 = never)");
+        label.setLabelFor(maxTaskLatency);
+
+        JPanel panel = new HorizontalPanel();
+        panel.add(label);
+        panel.add(maxTaskLatency);
+
+        return panel;
+    }
+}
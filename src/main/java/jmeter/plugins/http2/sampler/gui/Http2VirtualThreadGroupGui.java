@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler.gui;
+
+import jmeter.plugins.http2.sampler.Http2VirtualThreadGroup;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.threads.gui.ThreadGroupGui;
+
+/**
+ * The settings of the standard thread group, for a group running on virtual threads
+ */
+public class Http2VirtualThreadGroupGui extends ThreadGroupGui {
+
+    private static final long serialVersionUID = 240L;
+
+    @Override
+    public String getStaticLabel() {
+        return "HTTP2 Virtual Thread Group";
+    }
+
+    @Override
+    public TestElement createTestElement() {
+        Http2VirtualThreadGroup group = new Http2VirtualThreadGroup();
+
+        modifyTestElement(group);
+
+        return group;
+    }
+}
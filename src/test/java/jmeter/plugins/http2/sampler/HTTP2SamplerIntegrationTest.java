@@ -0,0 +1,401 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link HTTP2Sampler#sample(org.apache.jmeter.samplers.Entry)} end to end against an
+ * {@link Http2TestServer} on the loopback interface, the way a JMeter thread does.
+ */
+public class HTTP2SamplerIntegrationTest {
+
+    private Http2TestServer server;
+    private HTTP2Sampler sampler;
+    private JMeterVariables variables;
+
+    @Before
+    public void setUp() {
+        variables = new JMeterVariables();
+        JMeterContextService.getContext().setVariables(variables);
+    }
+
+    @After
+    public void tearDown() {
+        if (sampler != null) {
+            sampler.threadFinished();
+            sampler.testEnded();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Start {@code builder}'s server and a sampler pointed at it, within a started test
+     */
+    private HTTP2Sampler start(Http2TestServer.Builder builder) throws Exception {
+        server = builder.build().start();
+        sampler = new HTTP2Sampler();
+        sampler.setDomain("localhost");
+        sampler.setPort(server.port());
+        sampler.setPath("/index.html");
+        sampler.setProtocol(server.protocol());
+        sampler.testStarted();
+        sampler.threadStarted();
+        return sampler;
+    }
+
+    private SampleResult sample() {
+        SampleResult result = sampler.sample(null);
+        assertTrue(result.getResponseMessage(), result.isSuccessful());
+        return result;
+    }
+
+    @Test
+    public void getOverCleartextWithPriorKnowledge() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).payloadSize(2048));
+
+        SampleResult result = sample();
+
+        assertEquals("200", result.getResponseCode());
+        assertEquals(2048, result.getBodySize());
+        assertArrayEquals(server.payload(), result.getResponseData());
+        assertEquals(1, server.requests());
+        assertEquals("0", variables.get(Http2Timings.TLS_HANDSHAKE_VARIABLE));
+    }
+
+    @Test
+    public void getOverCleartextUpgrade() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C_UPGRADE));
+
+        SampleResult result = sample();
+
+        assertEquals("200", result.getResponseCode());
+        assertEquals(1024, result.getBodySize());
+        // The upgrade request to / counts as well
+        assertEquals(2, server.requests());
+    }
+
+    @Test
+    public void getOverTls() throws Exception {
+        Assume.assumeTrue("OpenSSL with ALPN is not available", Http2TestServer.isAlpnAvailable());
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2));
+
+        SampleResult result = sample();
+
+        assertEquals("200", result.getResponseCode());
+        assertEquals(1024, result.getBodySize());
+    }
+
+    @Test
+    public void connectionIsReusedAcrossSamples() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C));
+
+        sample();
+        SampleResult second = sample();
+        sample();
+
+        assertEquals(1, server.connections());
+        assertEquals(3, server.requests());
+        assertEquals(0, second.getConnectTime());
+        assertEquals("0", variables.get(Http2Timings.TCP_CONNECT_VARIABLE));
+    }
+
+    @Test
+    public void warmUpPrecedesTheFirstSample() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C));
+        sampler.setWarmupConnections(1);
+        sampler.setWarmupRequests(2);
+
+        SampleResult result = sample();
+        sample();
+
+        assertEquals(1, server.connections());
+        assertEquals(4, server.requests());
+        // The warm connection was adopted by the thread
+        assertEquals(0, result.getConnectTime());
+    }
+
+    @Test
+    public void pingRoundTripIsASubResult() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C));
+        sampler.setPingRtt(true);
+
+        SampleResult result = sample();
+
+        assertEquals(1, result.getSubResults().length);
+        SampleResult ping = result.getSubResults()[0];
+        assertEquals("PING", ping.getSampleLabel());
+        assertTrue(ping.getResponseMessage(), ping.isSuccessful());
+        assertTrue(Long.parseLong(variables.get(Http2Pinger.RTT_VARIABLE)) >= 0);
+        // The PING is no request
+        assertEquals(1, server.requests());
+    }
+
+    @Test
+    public void streamsAreMultiplexedOnOneConnection() throws Exception {
+        final long delay = 300;
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).delayMillis(delay)).setStreams(5);
+        // Warm the connection up, so that only the streams are timed
+        sample();
+
+        SampleResult result = sample();
+
+        assertEquals(5, result.getSubResults().length);
+        assertEquals(1, server.connections());
+        assertTrue("Streams were not in progress at once", server.maxConcurrentStreams() > 1);
+        // Sent one after the other, five streams would take five delays
+        assertTrue("Took " + result.getTime() + " ms", result.getTime() < 3 * delay);
+    }
+
+    @Test
+    public void streamsCarryThePriorityTreeOfThePreset() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C));
+        sampler.setAdditionalPaths("/app.css\n/hero.png\n/app.js");
+        sampler.setPriorityPreset(Http2Priority.PRESET_CHROME);
+
+        sample();
+
+        // Each stream depends exclusively on the latest one sent with at least its weight
+        assertEquals(Arrays.asList("256/0/exclusive", "256/1/exclusive", "147/3/exclusive", "220/3/exclusive"),
+            server.priorities());
+        assertEquals(4, variables.get(Http2StreamOrder.COMPLETION_ORDER_VARIABLE).split(",").length);
+        assertTrue(Long.parseLong(variables.get(Http2StreamOrder.CRITICAL_VARIABLE)) >= 0);
+    }
+
+    @Test
+    public void priorityAttributesOverrideThePreset() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C));
+        sampler.setAdditionalPaths("/app.css weight=32 depends=0 critical\n/hero.png");
+
+        sample();
+
+        // Without a preset, only the path with attributes would differ from the default priority
+        assertEquals(Arrays.asList("16/0", "32/1", "16/0"), server.priorities());
+    }
+
+    @Test
+    public void largeBodyIsStreamedNotRetained() throws Exception {
+        final int size = 4 * 1024 * 1024;
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).payloadSize(size));
+        sampler.setMaxRetainedBody(1000);
+        sampler.setBodyDigest("SHA-256");
+        sampler.setExpectedBodyDigest(hex(MessageDigest.getInstance("SHA-256").digest(server.payload())));
+
+        SampleResult result = sample();
+
+        assertEquals(size, result.getBodySize());
+        assertEquals(1000, result.getResponseData().length);
+        assertEquals(1, result.getAssertionResults().length);
+        assertFalse(result.getAssertionResults()[0].isFailure());
+    }
+
+    @Test
+    public void requestBodyIsSent() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C));
+        sampler.setMethod("POST");
+        sampler.setBodyType(HTTP2Sampler.BODY_TYPE_TEXT);
+        sampler.setBody("hello, server");
+
+        SampleResult result = sample();
+
+        assertTrue(result.getResponseHeaders(),
+            result.getResponseHeaders().contains(Http2TestServer.REQUEST_BYTES_HEADER + ": 13"));
+    }
+
+    @Test
+    public void pushedResponsesBecomeSubResults() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).push("/style.css").pushSize(3000));
+        sampler.setServerPush(true);
+
+        SampleResult result = sample();
+
+        assertEquals(1, result.getSubResults().length);
+        SampleResult pushed = result.getSubResults()[0];
+        assertEquals("PUSH /style.css", pushed.getSampleLabel());
+        assertTrue(pushed.isSuccessful());
+        assertEquals(3000, pushed.getBodySize());
+        assertEquals("1", variables.get(Http2PushStats.RECEIVED_VARIABLE));
+    }
+
+    @Test
+    public void pushesOverTheLimitAreCancelled() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).push("/video.mp4").pushSize(1024 * 1024));
+        sampler.setServerPush(true);
+        sampler.setPushSizeLimit(1000);
+
+        SampleResult result = sample();
+
+        SampleResult pushed = result.getSubResults()[0];
+        assertTrue(pushed.getResponseMessage(), pushed.getResponseMessage().startsWith("Cancelled"));
+        assertEquals("1", variables.get(Http2PushStats.CANCELLED_VARIABLE));
+        // The RST_STREAM may still be on its way
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (server.resets() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.resets());
+    }
+
+    @Test
+    public void pushIsOffByDefault() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).push("/style.css"));
+
+        SampleResult result = sample();
+
+        assertEquals(0, result.getSubResults().length);
+    }
+
+    @Test
+    public void goAwayMovesToANewConnection() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).goAwayAfter(1));
+
+        sample();
+        sample();
+
+        assertEquals(2, server.connections());
+        assertEquals(2, server.requests());
+    }
+
+    @Test
+    public void timedOutStreamIsReset() throws Exception {
+        // Longer than the 5 s response timeout of the client
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).delayMillis(7000));
+
+        SampleResult result = sampler.sample(null);
+
+        assertFalse(result.isSuccessful());
+        assertTrue(result.getResponseMessage(), result.getResponseMessage().contains("Timed out"));
+        // The RST_STREAM is written on the event loop after the sample returned
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (server.resets() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.resets());
+    }
+
+    @Test
+    public void streamsRefusedByGoAwayAreSentAgain() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).goAwayAfter(2));
+        sampler.setAdditionalPaths("/app.css\n/app.js");
+
+        SampleResult result = sample();
+
+        // The GOAWAY after the second stream refuses the third, in flight on the same connection
+        assertEquals(2, server.connections());
+        assertEquals(3, server.requests());
+        for (SampleResult stream : result.getSubResults()) {
+            assertTrue(stream.getResponseMessage(), stream.isSuccessful());
+        }
+        // Refused as soon as the GOAWAY arrived, not after the 5 s response timeout
+        assertTrue(result.getTime() < 5000);
+    }
+
+    @Test
+    public void samplesOnThreadsOfTheVirtualThreadGroup() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).delayMillis(50));
+        sampler.setConnectionMode(HTTP2Sampler.CONNECTION_MODE_SHARED);
+
+        final int users = 50;
+        final AtomicInteger successes = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < users; i++) {
+            // Every JMeter thread samples with a clone of its own
+            final HTTP2Sampler user = (HTTP2Sampler) sampler.clone();
+            Thread thread = Http2VirtualThreadGroup.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (user.sample(null).isSuccessful()) {
+                        successes.incrementAndGet();
+                    }
+                }
+            }, "user-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(users, successes.get());
+        assertEquals(1, server.connections());
+    }
+
+    @Test
+    public void aggregationEmitsOneSummaryPerInterval() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C));
+        sampler.setAggregate(true);
+        sampler.setAggregateInterval(1);
+
+        for (int i = 0; i < 5; i++) {
+            assertNull(sampler.sample(null));
+        }
+        Thread.sleep(1100);
+        SampleResult summary = sampler.sample(null);
+
+        assertNotNull(summary);
+        assertEquals(6, summary.getSampleCount());
+        assertEquals(0, summary.getErrorCount());
+        assertTrue(summary.getResponseDataAsString(), summary.getResponseDataAsString().contains("samples=6"));
+        assertTrue(summary.getResponseDataAsString().contains("summarised=6 "));
+        // Spans its interval, however long the samples took together
+        assertTrue(summary.getEndTime() <= System.currentTimeMillis());
+        assertEquals(summary.getEndTime(), summary.getStartTime() + summary.getTime());
+        assertNull(sampler.sample(null));
+    }
+
+    @Test
+    public void metricsSamplerReportsTheClient() throws Exception {
+        start(new Http2TestServer.Builder(HTTP2Sampler.PROTOCOL_H2C).goAwayAfter(1));
+        sample();
+        sample();
+
+        Http2MetricsSampler metrics = new Http2MetricsSampler();
+        metrics.setMaxTaskLatency(Http2Metrics.PROBE_TIMEOUT_MS);
+        SampleResult result = metrics.sample(null);
+
+        assertTrue(result.getResponseMessage(), result.isSuccessful());
+        assertEquals("1", variables.get(Http2Metrics.Snapshot.OPEN_CONNECTIONS_VARIABLE));
+        assertEquals("0", variables.get(Http2Metrics.Snapshot.ACTIVE_STREAMS_VARIABLE));
+        // One GOAWAY per connection, the last one still counts as open until it is replaced
+        assertEquals("2", variables.get(Http2Metrics.Snapshot.GOAWAYS_RECEIVED_VARIABLE));
+        assertTrue(result.getResponseDataAsString().contains(Http2Metrics.Snapshot.TASK_LATENCY_VARIABLE + '='));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+/**
+ * An HTTP/2 server running in the test JVM, built on the same Netty codec as the sampler.
+ *
+ * It listens on an ephemeral port of the loopback interface and speaks one of the protocols the
+ * sampler offers: TLS with a self-signed certificate, cleartext with prior knowledge or cleartext
+ * upgraded from HTTP/1.1. Every request is answered with a status 200 and a payload of the
+ * configured size, optionally after a delay, along with the configured pushes. It counts the
+ * connections and requests it sees, so tests can tell connection reuse and multiplexing apart.
+ */
+public final class Http2TestServer implements Closeable {
+
+    /** Response header holding the number of request body bytes received */
+    public static final String REQUEST_BYTES_HEADER = "x-request-bytes";
+
+    private final String protocol;
+    private final long delayMillis;
+    private final byte[] payload;
+    private final List<String> pushPaths;
+    private final int pushSize;
+    private final int goAwayAfter;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentStreams = new AtomicInteger();
+    private final AtomicInteger resets = new AtomicInteger();
+    private final List<String> priorities = new CopyOnWriteArrayList<String>();
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private SelfSignedCertificate certificate;
+    private Channel channel;
+
+    private Http2TestServer(Builder builder) {
+        this.protocol = builder.protocol;
+        this.delayMillis = builder.delayMillis;
+        this.payload = new byte[builder.payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        this.pushPaths = Collections.unmodifiableList(new ArrayList<String>(builder.pushPaths));
+        this.pushSize = builder.pushSize;
+        this.goAwayAfter = builder.goAwayAfter;
+    }
+
+    /**
+     * @return {@code true} if TLS connections can negotiate h2, which needs OpenSSL with ALPN support
+     */
+    public static boolean isAlpnAvailable() {
+        return OpenSsl.isAlpnSupported();
+    }
+
+    /**
+     * Bind the server to an ephemeral port of the loopback interface
+     */
+    public Http2TestServer start() throws InterruptedException, CertificateException, SSLException {
+        final SslContext sslCtx = HTTP2Sampler.PROTOCOL_H2.equals(protocol) ? newSslContext() : null;
+
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(2);
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup);
+        b.channel(NioServerSocketChannel.class);
+        b.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                connections.incrementAndGet();
+                ChannelPipeline pipeline = ch.pipeline();
+                if (sslCtx != null) {
+                    pipeline.addLast(sslCtx.newHandler(ch.alloc()));
+                    pipeline.addLast(new Http2TestServerHandler(Http2TestServer.this));
+                } else if (HTTP2Sampler.PROTOCOL_H2C.equals(protocol)) {
+                    pipeline.addLast(new Http2TestServerHandler(Http2TestServer.this));
+                } else {
+                    HttpServerCodec sourceCodec = new HttpServerCodec();
+                    HttpServerUpgradeHandler.UpgradeCodec upgradeCodec =
+                        new Http2ServerUpgradeCodec(new Http2TestServerHandler(Http2TestServer.this));
+                    pipeline.addLast(sourceCodec);
+                    pipeline.addLast(new HttpServerUpgradeHandler(sourceCodec,
+                        Collections.singletonList(upgradeCodec), 65536));
+                }
+            }
+        });
+        channel = b.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        return this;
+    }
+
+    private SslContext newSslContext() throws CertificateException, SSLException {
+        certificate = new SelfSignedCertificate("localhost");
+        return SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey())
+            .sslProvider(OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK)
+            .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+            .applicationProtocolConfig(new ApplicationProtocolConfig(
+                Protocol.ALPN,
+                SelectorFailureBehavior.NO_ADVERTISE,
+                SelectedListenerFailureBehavior.ACCEPT,
+                ApplicationProtocolNames.HTTP_2))
+            .build();
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    public int port() {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * @return The protocol the server speaks, one of the {@code HTTP2Sampler.PROTOCOL_*} values
+     */
+    public String protocol() {
+        return protocol;
+    }
+
+    /**
+     * @return A copy of the body of every response
+     */
+    public byte[] payload() {
+        return payload.clone();
+    }
+
+    /**
+     * @return Connections accepted since the server started
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * @return Requests received since the server started, pushes not included
+     */
+    public int requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return The largest number of requests in progress at once on a single connection
+     */
+    public int maxConcurrentStreams() {
+        return maxConcurrentStreams.get();
+    }
+
+    /**
+     * @return RST_STREAM frames received from clients
+     */
+    public int resets() {
+        return resets.get();
+    }
+
+    /**
+     * @return The priority of every HEADERS frame received with one, as {@code weight/dependency[/exclusive]}
+     *         in the order received
+     */
+    public List<String> priorities() {
+        return priorities;
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            channel.close().awaitUninterruptibly();
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+        }
+        if (certificate != null) {
+            certificate.delete();
+        }
+    }
+
+    long delayMillis() {
+        return delayMillis;
+    }
+
+    byte[] responsePayload() {
+        return payload;
+    }
+
+    List<String> pushPaths() {
+        return pushPaths;
+    }
+
+    int pushSize() {
+        return pushSize;
+    }
+
+    int goAwayAfter() {
+        return goAwayAfter;
+    }
+
+    /**
+     * Count a request, called on the event loop of its connection
+     *
+     * @param concurrentStreams Requests in progress on the connection, this one included
+     * @return The number of requests received so far, this one included
+     */
+    int requestReceived(int concurrentStreams) {
+        int max;
+        do {
+            max = maxConcurrentStreams.get();
+        } while (concurrentStreams > max && !maxConcurrentStreams.compareAndSet(max, concurrentStreams));
+        return requests.incrementAndGet();
+    }
+
+    void resetReceived() {
+        resets.incrementAndGet();
+    }
+
+    void priorityReceived(int streamDependency, short weight, boolean exclusive) {
+        priorities.add(weight + "/" + streamDependency + (exclusive ? "/exclusive" : ""));
+    }
+
+    /**
+     * Builder for {@link Http2TestServer}
+     */
+    public static class Builder {
+        private final String protocol;
+        private long delayMillis;
+        private int payloadSize = 1024;
+        private final List<String> pushPaths = new ArrayList<String>();
+        private int pushSize = 1024;
+        private int goAwayAfter;
+
+        /**
+         * @param protocol One of the {@code HTTP2Sampler.PROTOCOL_*} values
+         */
+        public Builder(String protocol) {
+            this.protocol = protocol;
+        }
+
+        /**
+         * @param delayMillis Time between receiving a request and sending its response
+         */
+        public Builder delayMillis(long delayMillis) {
+            this.delayMillis = delayMillis;
+            return this;
+        }
+
+        /**
+         * @param payloadSize Body size of every response
+         */
+        public Builder payloadSize(int payloadSize) {
+            this.payloadSize = payloadSize;
+            return this;
+        }
+
+        /**
+         * @param path Pushed along with every response, to clients which enabled push
+         */
+        public Builder push(String path) {
+            this.pushPaths.add(path);
+            return this;
+        }
+
+        /**
+         * @param pushSize Body size of every pushed response
+         */
+        public Builder pushSize(int pushSize) {
+            this.pushSize = pushSize;
+            return this;
+        }
+
+        /**
+         * @param goAwayAfter Number of requests a connection serves before the server sends GOAWAY, 0 for no limit
+         */
+        public Builder goAwayAfter(int goAwayAfter) {
+            this.goAwayAfter = goAwayAfter;
+            return this;
+        }
+
+        public Http2TestServer build() {
+            return new Http2TestServer(this);
+        }
+    }
+}
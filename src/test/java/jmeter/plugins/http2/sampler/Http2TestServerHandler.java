@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2015 Ryo Okubo
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jmeter.plugins.http2.sampler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+
+/**
+ * Serves the streams of one connection of the {@link Http2TestServer}.
+ *
+ * All state is confined to the event loop of the connection. A request is answered once its
+ * last frame has arrived: pushes are promised first, then the response and the pushed responses
+ * are written, leaving the pacing to the flow controller.
+ */
+final class Http2TestServerHandler extends Http2ConnectionHandler {
+
+    private static final AsciiString PUSH_SCHEME = new AsciiString("https");
+    private static final AsciiString REQUEST_BYTES = new AsciiString(Http2TestServer.REQUEST_BYTES_HEADER);
+
+    private final Http2TestServer server;
+    private final Map<Integer, Request> inProgress = new HashMap<Integer, Request>();
+    private int served;
+    // Last stream id of the GOAWAY sent, 0 before
+    private int goAwayStreamId;
+
+    Http2TestServerHandler(Http2TestServer server) {
+        this(server, new FrameListener());
+    }
+
+    private Http2TestServerHandler(Http2TestServer server, FrameListener listener) {
+        super(new DefaultHttp2Connection(true), listener);
+        this.server = server;
+        listener.handler = this;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+            // The upgrade request became stream 1, half-closed from the client's side
+            final HttpServerUpgradeHandler.UpgradeEvent upgrade = (HttpServerUpgradeHandler.UpgradeEvent) evt;
+            final CharSequence host = upgrade.upgradeRequest().headers().get(HttpHeaderNames.HOST);
+            requestReceived(ctx, 1, new Request(host != null ? new AsciiString(host) : null));
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    private void requestReceived(final ChannelHandlerContext ctx, final int streamId, final Request request) {
+        if (goAwayStreamId > 0 && streamId > goAwayStreamId) {
+            // Refused by the GOAWAY, the client has to send it again on another connection
+            return;
+        }
+        served++;
+        server.requestReceived(inProgress.size() + 1);
+        if (server.goAwayAfter() > 0 && served == server.goAwayAfter()) {
+            // Announced before the response, so the client never picks this connection again
+            goAwayStreamId = streamId;
+            encoder().writeGoAway(ctx, streamId, Http2Error.NO_ERROR.code(), Unpooled.EMPTY_BUFFER, ctx.newPromise());
+        }
+        inProgress.put(streamId, request);
+
+        if (server.delayMillis() > 0) {
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    respond(ctx, streamId, request);
+                }
+            }, server.delayMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            respond(ctx, streamId, request);
+        }
+    }
+
+    private void respond(ChannelHandlerContext ctx, int streamId, Request request) {
+        inProgress.remove(streamId);
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+
+        final List<Integer> promisedIds = new ArrayList<Integer>();
+        if (connection().remote().allowPushTo() && request.authority != null) {
+            for (String path : server.pushPaths()) {
+                final int promisedId = connection().local().nextStreamId();
+                final Http2Headers promised = new DefaultHttp2Headers()
+                    .method(HttpMethod.GET.name())
+                    .scheme(PUSH_SCHEME)
+                    .authority(request.authority)
+                    .path(new AsciiString(path));
+                encoder().writePushPromise(ctx, streamId, promisedId, promised, 0, ctx.newPromise());
+                promisedIds.add(promisedId);
+            }
+        }
+
+        final Http2Headers headers = new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText());
+        headers.setLong(REQUEST_BYTES, request.bodyBytes);
+        writeResponse(ctx, streamId, headers, server.responsePayload());
+
+        final byte[] pushPayload = new byte[server.pushSize()];
+        for (int promisedId : promisedIds) {
+            writeResponse(ctx, promisedId, new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText()),
+                pushPayload);
+        }
+        ctx.flush();
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, int streamId, Http2Headers headers, byte[] payload) {
+        headers.setLong(HttpHeaderNames.CONTENT_LENGTH, payload.length);
+        encoder().writeHeaders(ctx, streamId, headers, 0, payload.length == 0, ctx.newPromise());
+        if (payload.length > 0) {
+            // Wrapped, not copied: the payload never changes
+            encoder().writeData(ctx, streamId, Unpooled.wrappedBuffer(payload), 0, true, ctx.newPromise());
+        }
+    }
+
+    /**
+     * A request whose last frame has not been answered yet
+     */
+    private static final class Request {
+        private final AsciiString authority;
+        private long bodyBytes;
+
+        Request(AsciiString authority) {
+            this.authority = authority;
+        }
+    }
+
+    private static final class FrameListener extends Http2FrameAdapter {
+        private Http2TestServerHandler handler;
+        private final Map<Integer, Request> pending = new HashMap<Integer, Request>();
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding,
+                boolean endOfStream) throws Http2Exception {
+            Request request = new Request(headers.authority());
+            if (endOfStream) {
+                handler.requestReceived(ctx, streamId, request);
+            } else {
+                pending.put(streamId, request);
+            }
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int streamDependency,
+                short weight, boolean exclusive, int padding, boolean endOfStream) throws Http2Exception {
+            handler.server.priorityReceived(streamDependency, weight, exclusive);
+            onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+        }
+
+        @Override
+        public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding, boolean endOfStream)
+                throws Http2Exception {
+            final int processed = data.readableBytes() + padding;
+            final Request request = endOfStream ? pending.remove(streamId) : pending.get(streamId);
+            if (request != null) {
+                request.bodyBytes += data.readableBytes();
+                if (endOfStream) {
+                    handler.requestReceived(ctx, streamId, request);
+                }
+            }
+            return processed;
+        }
+
+        @Override
+        public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) throws Http2Exception {
+            pending.remove(streamId);
+            handler.server.resetReceived();
+        }
+    }
+}